@@ -0,0 +1,89 @@
+package speedscale.lib;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jol.info.GraphLayout;
+
+import speedscale.model.InterestRateStats;
+import speedscale.model.TreasuryResponse;
+
+// Ten years of generated records held as parsed TreasuryResponse.Records
+// and as InterestRateColumns. Setup prints the heap each retains, as
+// measured by JOL, then a full aggregation over each is timed.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.attach.allowAttachSelf")
+public class InterestRateColumnsBenchmark {
+
+    static final int YEARS = 10;
+
+    List<TreasuryResponse.Record> records;
+    InterestRateColumns columns;
+
+    @Setup
+    public void setup() throws Exception {
+        records = Treasury.parse(TreasuryBenchmark.page(TreasuryBenchmark.SECURITIES.length * 12 * YEARS)).data;
+        columns = InterestRateColumns.of(records);
+        for (int row = 0; row < records.size(); row++) {
+            if (!equal(records.get(row), columns.record(row))) {
+                throw new IllegalStateException("Row " + row + " did not round trip");
+            }
+        }
+        long recordsBytes = GraphLayout.parseInstance(records).totalSize();
+        long columnsBytes = GraphLayout.parseInstance(columns).totalSize();
+        System.out.printf("%d rows retain %d bytes as Records (%d per row), %d as columns (%d per row)%n",
+            records.size(), recordsBytes, recordsBytes / records.size(), columnsBytes, columnsBytes / records.size());
+    }
+
+    // What InterestRateReducer does over columns, over Records
+    @Benchmark
+    public InterestRateStats records() {
+        InterestRateStats stats = new InterestRateStats();
+        for (TreasuryResponse.Record r : records) {
+            stats.count++;
+            if (stats.max == null || stats.max.avg_interest_rate_amt < r.avg_interest_rate_amt) {
+                stats.max = r;
+            }
+            if (stats.min == null || stats.min.avg_interest_rate_amt > r.avg_interest_rate_amt) {
+                stats.min = r;
+            }
+            stats.by_security_type
+                .computeIfAbsent(r.security_type_desc, k -> new InterestRateStats.Summary())
+                .add(r.avg_interest_rate_amt);
+        }
+        return stats;
+    }
+
+    @Benchmark
+    public InterestRateStats columns() {
+        return InterestRateReducer.reduce(columns, 0);
+    }
+
+    static boolean equal(TreasuryResponse.Record a, TreasuryResponse.Record b) {
+        return a.record_date.equals(b.record_date)
+            && a.security_type_desc.equals(b.security_type_desc)
+            && a.security_desc.equals(b.security_desc)
+            && a.avg_interest_rate_amt == b.avg_interest_rate_amt
+            && a.src_line_nbr == b.src_line_nbr
+            && a.record_fiscal_year == b.record_fiscal_year
+            && a.record_fiscal_quarter == b.record_fiscal_quarter
+            && a.record_calendar_year == b.record_calendar_year
+            && a.record_calendar_quarter == b.record_calendar_quarter
+            && a.record_calendar_month == b.record_calendar_month
+            && a.record_calendar_day == b.record_calendar_day;
+    }
+}
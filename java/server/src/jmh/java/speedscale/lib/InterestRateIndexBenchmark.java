@@ -0,0 +1,106 @@
+package speedscale.lib;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import speedscale.model.InterestRateRange;
+import speedscale.model.TreasuryResponse;
+
+// Range max/min over ten years of generated records, the sparse table
+// behind /treasury/interest_range against a scan of the same records.
+// Ranges are drawn up front so both answer the same questions.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterestRateIndexBenchmark {
+
+    static final int YEARS = 10;
+    static final int QUERIES = 1024;
+
+    List<TreasuryResponse.Record> records;
+    InterestRateIndex index;
+    LocalDate[] from = new LocalDate[QUERIES];
+    LocalDate[] to = new LocalDate[QUERIES];
+    String[] type = new String[QUERIES];
+    int next;
+
+    @Setup
+    public void setup() throws Exception {
+        records = Treasury.parse(TreasuryBenchmark.page(TreasuryBenchmark.SECURITIES.length * 12 * YEARS)).data;
+        index = new InterestRateIndex(InterestRateColumns.of(records));
+
+        Random r = new Random(42);
+        LocalDate first = LocalDate.of(2025, 1, 1);
+        for (int i = 0; i < QUERIES; i++) {
+            LocalDate a = first.plusDays(r.nextInt(365 * YEARS));
+            LocalDate b = first.plusDays(r.nextInt(365 * YEARS));
+            from[i] = a.isBefore(b) ? a : b;
+            to[i] = a.isBefore(b) ? b : a;
+            type[i] = r.nextBoolean() ? null : TreasuryBenchmark.SECURITIES[r.nextInt(TreasuryBenchmark.SECURITIES.length)][0];
+
+            InterestRateRange fast = index.query(from[i], to[i], type[i]);
+            InterestRateRange slow = scan(from[i], to[i], type[i]);
+            if (fast.count != slow.count || !same(fast.max, slow.max) || !same(fast.min, slow.min)) {
+                throw new IllegalStateException("Index and scan differ for " + from[i] + ".." + to[i] + " " + type[i]);
+            }
+        }
+    }
+
+    @Benchmark
+    public InterestRateRange index() {
+        int i = next++ & (QUERIES - 1);
+        return index.query(from[i], to[i], type[i]);
+    }
+
+    @Benchmark
+    public InterestRateRange scan() {
+        int i = next++ & (QUERIES - 1);
+        return scan(from[i], to[i], type[i]);
+    }
+
+    // The index answers with Records rebuilt from its columns
+    static boolean same(TreasuryResponse.Record a, TreasuryResponse.Record b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.record_date.equals(b.record_date) && a.src_line_nbr == b.src_line_nbr
+            && a.avg_interest_rate_amt == b.avg_interest_rate_amt;
+    }
+
+    InterestRateRange scan(LocalDate from, LocalDate to, String type) {
+        InterestRateRange range = new InterestRateRange();
+        long lo = from.toEpochDay();
+        long hi = to.toEpochDay();
+        for (TreasuryResponse.Record r : records) {
+            long day = r.record_date.toInstant().atZone(ZoneOffset.UTC).toLocalDate().toEpochDay();
+            if (day < lo || day > hi || (type != null && !type.equals(r.security_type_desc))) {
+                continue;
+            }
+            range.count++;
+            if (range.max == null || range.max.avg_interest_rate_amt < r.avg_interest_rate_amt) {
+                range.max = r;
+            }
+            if (range.min == null || range.min.avg_interest_rate_amt > r.avg_interest_rate_amt) {
+                range.min = r;
+            }
+        }
+        return range;
+    }
+}
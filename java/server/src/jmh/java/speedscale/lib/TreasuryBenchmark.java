@@ -0,0 +1,134 @@
+package speedscale.lib;
+
+import java.time.LocalDate;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import speedscale.model.InterestRateStats;
+import speedscale.model.TreasuryResponse;
+
+// One page of the avg_interest_rates API, deserialized into
+// TreasuryResponse and scanned for the max as /treasury/max_interest used
+// to, against the streaming reducer it uses now. The page is generated in
+// the upstream's shape (every value a string, 100 records, meta and links
+// blocks) so it needs no network.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreasuryBenchmark {
+
+    static final String[][] SECURITIES = {
+        {"Marketable", "Treasury Bills"},
+        {"Marketable", "Treasury Notes"},
+        {"Marketable", "Treasury Bonds"},
+        {"Marketable", "Treasury Inflation-Protected Securities (TIPS)"},
+        {"Marketable", "Treasury Floating Rate Notes (FRN)"},
+        {"Marketable", "Federal Financing Bank"},
+        {"Marketable", "Total Marketable"},
+        {"Non-marketable", "Domestic Series"},
+        {"Non-marketable", "Foreign Series"},
+        {"Non-marketable", "State and Local Government Series"},
+        {"Non-marketable", "United States Savings Securities"},
+        {"Non-marketable", "United States Savings Inflation Securities"},
+        {"Non-marketable", "Government Account Series"},
+        {"Non-marketable", "Government Account Series Inflation Securities"},
+        {"Non-marketable", "Total Non-marketable"},
+        {"Interest-bearing Debt", "Total Interest-bearing Debt"},
+    };
+
+    static final int PAGE_SIZE = 100;
+
+    String body;
+
+    @Setup
+    public void setup() throws Exception {
+        body = page(PAGE_SIZE);
+        TreasuryResponse resp = Treasury.parse(body);
+        if (resp.data.size() != PAGE_SIZE) {
+            throw new IllegalStateException("Fixture did not round trip");
+        }
+        TreasuryResponse.Record expected = scanMax(resp);
+        TreasuryResponse.Record actual = InterestRateReducer.reduce(body).max;
+        if (expected.avg_interest_rate_amt != actual.avg_interest_rate_amt
+                || !expected.record_date.equals(actual.record_date)
+                || !expected.security_desc.equals(actual.security_desc)) {
+            throw new IllegalStateException("Reducer max differs from the list scan");
+        }
+    }
+
+    @Benchmark
+    public TreasuryResponse parse() throws Exception {
+        return Treasury.parse(body);
+    }
+
+    @Benchmark
+    public TreasuryResponse.Record parseAndScan() throws Exception {
+        return scanMax(Treasury.parse(body));
+    }
+
+    @Benchmark
+    public InterestRateStats reduce() throws Exception {
+        return InterestRateReducer.reduce(body);
+    }
+
+    static TreasuryResponse.Record scanMax(TreasuryResponse resp) {
+        TreasuryResponse.Record max = null;
+        for (TreasuryResponse.Record record : resp.data) {
+            if (max == null || max.avg_interest_rate_amt < record.avg_interest_rate_amt) {
+                max = record;
+            }
+        }
+        return max;
+    }
+
+    static String page(int records) {
+        Random r = new Random(42);
+        StringBuilder sb = new StringBuilder("{\"data\":[");
+        LocalDate month = LocalDate.of(2025, 1, 31);
+        for (int i = 0; i < records; i++) {
+            int line = i % SECURITIES.length;
+            if (i > 0 && line == 0) {
+                month = month.plusMonths(1).withDayOfMonth(month.plusMonths(1).lengthOfMonth());
+            }
+            int fiscalYear = month.getMonthValue() >= 10 ? month.getYear() + 1 : month.getYear();
+            int fiscalQuarter = (month.getMonthValue() + 2) / 3 % 4 + 1;
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"record_date\":\"").append(month)
+                .append("\",\"security_type_desc\":\"").append(SECURITIES[line][0])
+                .append("\",\"security_desc\":\"").append(SECURITIES[line][1])
+                .append("\",\"avg_interest_rate_amt\":\"").append(String.format(Locale.ROOT, "%.3f", 0.5 + r.nextDouble() * 4))
+                .append("\",\"src_line_nbr\":\"").append(line + 1)
+                .append("\",\"record_fiscal_year\":\"").append(fiscalYear)
+                .append("\",\"record_fiscal_quarter\":\"").append(fiscalQuarter)
+                .append("\",\"record_calendar_year\":\"").append(month.getYear())
+                .append("\",\"record_calendar_quarter\":\"").append((month.getMonthValue() + 2) / 3)
+                .append("\",\"record_calendar_month\":\"").append(String.format("%02d", month.getMonthValue()))
+                .append("\",\"record_calendar_day\":\"").append(month.getDayOfMonth())
+                .append("\"}");
+        }
+        sb.append("],\"meta\":{\"count\":").append(records)
+            .append(",\"labels\":{\"record_date\":\"Record Date\",\"security_type_desc\":\"Security Type Description\",")
+            .append("\"security_desc\":\"Security Description\",\"avg_interest_rate_amt\":\"Average Interest Rate Amount\"},")
+            .append("\"total-count\":").append(records).append(",\"total-pages\":1},")
+            .append("\"links\":{\"self\":\"&page%5Bnumber%5D=1&page%5Bsize%5D=100\",\"first\":\"&page%5Bnumber%5D=1&page%5Bsize%5D=100\",")
+            .append("\"prev\":null,\"next\":null,\"last\":\"&page%5Bnumber%5D=1&page%5Bsize%5D=100\"}}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package speedscale.server;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import speedscale.model.Login;
+
+// Response map construction in the Controller handlers that do not call an
+// upstream, plus the Jackson work on either side of /login.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControllerBenchmark {
+
+    static final String LOGIN = "{\"username\":\"admin\",\"password\":\"password\"}";
+
+    Controller controller;
+    ObjectMapper mapper;
+    Login login;
+
+    @Setup
+    public void setup() throws Exception {
+        VerifiedTokenCache cache = new VerifiedTokenCache(10000, 300000);
+        TokenRejections rejections = new TokenRejections(TimeUnit.HOURS.toMillis(1));
+        controller = new Controller();
+        controller.jwt = new TokenManager(TokenManagerBenchmark.HMAC_SECRET, "tls.key", "tls.crt", false,
+            new SigningKeyring("", cache), rejections);
+        controller.tokenCache = cache;
+        controller.tokenRejections = rejections;
+        controller.tokenRevocations = new TokenRevocations("", 100000);
+
+        mapper = new ObjectMapper();
+        login = mapper.readValue(LOGIN, Login.class);
+    }
+
+    @Benchmark
+    public Map<String, String> login() {
+        return controller.login(login);
+    }
+
+    @Benchmark
+    public String loginRoundTrip() throws Exception {
+        return mapper.writeValueAsString(controller.login(mapper.readValue(LOGIN, Login.class)));
+    }
+
+    @Benchmark
+    public Map<String, Map<String, Long>> stats() {
+        return controller.stats();
+    }
+}
@@ -0,0 +1,86 @@
+package speedscale.server;
+
+import java.security.Key;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.SignatureAlgorithm;
+import io.jsonwebtoken.security.Keys;
+
+// jjwt against the hand-rolled HS256 path. Setup refuses to run if the two
+// do not produce byte-for-byte identical tokens.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FastHs256Benchmark {
+
+    TokenManager jjwt;
+    TokenManager fast;
+    String token;
+
+    @Setup
+    public void setup() {
+        jjwt = new TokenManager(TokenManagerBenchmark.HMAC_SECRET, "tls.key", "tls.crt", false,
+            new SigningKeyring("", new VerifiedTokenCache(0, 0)), new TokenRejections(10000));
+        fast = new TokenManager(TokenManagerBenchmark.HMAC_SECRET, "tls.key", "tls.crt", true,
+            new SigningKeyring("", new VerifiedTokenCache(0, 0)), new TokenRejections(10000));
+        token = jjwt.generateHmacToken("admin");
+
+        Key key = Keys.hmacShaKeyFor(TokenManagerBenchmark.HMAC_SECRET.getBytes());
+        FastHs256 engine = new FastHs256();
+        SigningKeyring keys = new SigningKeyring("", new VerifiedTokenCache(0, 0));
+        keys.setDefault(TokenManager.DEFAULT_HMAC_KID, FastHs256.ALGORITHM, key, key);
+        long ts = System.currentTimeMillis();
+        for (String user : new String[] {"admin", "a", "some.user@example.com", "x y-z_1~!#$%&'()*+,/:;<=>?@[]^`{|}"}) {
+            String id = UUID.randomUUID().toString();
+            String expected = TokenManager.makeBuilder(user, ts, id)
+                .setHeaderParam(JwsHeader.KEY_ID, TokenManager.DEFAULT_HMAC_KID)
+                .signWith(key, SignatureAlgorithm.HS256)
+                .compact();
+            String actual = engine.sign(TokenManager.DEFAULT_HMAC_KID, key, user, ts, id);
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException("FastHs256 differs from jjwt:\n" + expected + "\n" + actual);
+            }
+            VerifiedToken verified = engine.verify(expected, keys::get);
+            if (verified == null || verified == FastHs256.FALLBACK || !user.equals(verified.subject)
+                    || !id.equals(verified.id)) {
+                throw new IllegalStateException("FastHs256 rejected a jjwt token: " + expected);
+            }
+        }
+    }
+
+    @Benchmark
+    public String signJjwt() {
+        return jjwt.generateHmacToken("admin");
+    }
+
+    @Benchmark
+    public String signFast() {
+        return fast.generateHmacToken("admin");
+    }
+
+    @Benchmark
+    public VerifiedToken verifyJjwt() {
+        return jjwt.verifyJwtToken(token);
+    }
+
+    @Benchmark
+    public VerifiedToken verifyFast() {
+        return fast.verifyJwtToken(token);
+    }
+}
@@ -0,0 +1,99 @@
+package speedscale.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+// The per-request work JwtFilter does before a handler runs: header
+// parsing, the verified token cache, the revocation check and, for the
+// expired simulation tokens, the structural reject.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JwtFilterBenchmark {
+
+    JwtFilter cached;
+    JwtFilter uncached;
+    MockHttpServletRequest fresh;
+    MockHttpServletRequest recorded;
+    MockHttpServletRequest missing;
+
+    @Setup
+    public void setup() throws Exception {
+        TokenRejections rejections = new TokenRejections(TimeUnit.HOURS.toMillis(1));
+        TokenManager tokenManager = new TokenManager(TokenManagerBenchmark.HMAC_SECRET, "tls.key", "tls.crt", false,
+            new SigningKeyring("", new VerifiedTokenCache(0, 0)), rejections);
+
+        cached = filter(tokenManager, new VerifiedTokenCache(10000, 300000), rejections);
+        uncached = filter(tokenManager, new VerifiedTokenCache(0, 0), rejections);
+
+        fresh = request("Bearer " + tokenManager.generateHmacToken("admin"));
+        recorded = request("Bearer " + SimulationTokens.load("HS256").get(0));
+        missing = request(null);
+
+        // Fill the cache and make sure the fresh token is let through
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        cached.doFilterInternal(fresh, response, new MockFilterChain());
+        if (response.getStatus() != 200) {
+            throw new IllegalStateException("JwtFilter rejected a fresh token: " + response.getStatus());
+        }
+    }
+
+    @Benchmark
+    public int cachedToken() throws Exception {
+        return run(cached, fresh);
+    }
+
+    @Benchmark
+    public int uncachedToken() throws Exception {
+        return run(uncached, fresh);
+    }
+
+    @Benchmark
+    public int expiredSimulationToken() throws Exception {
+        return run(uncached, recorded);
+    }
+
+    @Benchmark
+    public int missingHeader() throws Exception {
+        return run(uncached, missing);
+    }
+
+    private static int run(JwtFilter filter, MockHttpServletRequest request) throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilterInternal(request, response, new MockFilterChain());
+        return response.getStatus();
+    }
+
+    private static JwtFilter filter(TokenManager tokenManager, VerifiedTokenCache cache, TokenRejections rejections) {
+        JwtFilter filter = new JwtFilter();
+        filter.tokenManager = tokenManager;
+        filter.tokenCache = cache;
+        filter.rejections = rejections;
+        filter.revocations = new TokenRevocations("", 100000);
+        return filter;
+    }
+
+    private static MockHttpServletRequest request(String authorization) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/spacex/launches");
+        if (authorization != null) {
+            request.addHeader("Authorization", authorization);
+        }
+        return request;
+    }
+}
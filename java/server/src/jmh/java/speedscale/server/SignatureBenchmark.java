@@ -0,0 +1,71 @@
+package speedscale.server;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Token sign and verify throughput for every algorithm TokenManager issues,
+// measured through the same code paths the endpoints and JwtFilter use.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+
+    @Param({"HS256", "RS256", "ES256", "EdDSA"})
+    String algorithm;
+
+    TokenManager tokenManager;
+    Function<String, String> generator;
+    String token;
+
+    @Setup
+    public void setup() throws Exception {
+        Path dir = Files.createTempDirectory("jmh-keys");
+        tokenManager = new TokenManager(TokenManagerBenchmark.HMAC_SECRET,
+            dir.resolve("tls.key").toString(), dir.resolve("tls.crt").toString(), false,
+            new SigningKeyring("", new VerifiedTokenCache(0, 0)), new TokenRejections(10000));
+        tokenManager.loadRsaKeyPair();
+
+        switch (algorithm) {
+            case "HS256":
+                generator = tokenManager::generateHmacToken;
+                break;
+            case "RS256":
+                generator = tokenManager::generateRsaToken;
+                break;
+            case "ES256":
+                generator = tokenManager::generateEcToken;
+                break;
+            default:
+                generator = tokenManager::generateEdToken;
+                break;
+        }
+        token = generator.apply("admin");
+    }
+
+    @Benchmark
+    public String sign() {
+        return generator.apply("admin");
+    }
+
+    @Benchmark
+    public VerifiedToken verify() {
+        return tokenManager.verifyJwtToken(token);
+    }
+}
@@ -0,0 +1,92 @@
+package speedscale.server;
+
+import java.security.Key;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.security.Keys;
+
+// Verification cost for the exact tokens the Gatling simulation sends,
+// checked as of the moment they were issued. The RS256 ones were signed by
+// a key that is not in the repo, so only their structural check can be
+// measured.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimulationTokenBenchmark {
+
+    String hmacToken;
+    String rsaToken;
+    long now;
+
+    JwtParser jjwt;
+    FastHs256 fast;
+    Function<String, SigningKeyring.SigningKey> keys;
+
+    @Setup
+    public void setup() throws Exception {
+        List<String> hmacTokens = SimulationTokens.load("HS256");
+        hmacToken = hmacTokens.get(0);
+        rsaToken = SimulationTokens.load("RS256").get(0);
+        now = SimulationTokens.issuedAt(hmacToken);
+
+        Key key = Keys.hmacShaKeyFor(TokenManagerBenchmark.HMAC_SECRET.getBytes());
+        jjwt = Jwts.parserBuilder()
+            .setSigningKey(key)
+            .setClock(() -> new Date(now))
+            .build();
+        fast = new FastHs256();
+        SigningKeyring keyring = new SigningKeyring("", new VerifiedTokenCache(0, 0));
+        keyring.setDefault(TokenManager.DEFAULT_HMAC_KID, FastHs256.ALGORITHM, key, key);
+        keys = kid -> keyring.getDefault(FastHs256.ALGORITHM);
+
+        // Every recorded HS256 token has to verify, otherwise the numbers
+        // below are for the failure path
+        for (String token : hmacTokens) {
+            jjwt.parseClaimsJws(token);
+            VerifiedToken verified = fast.verify(token, keys, SimulationTokens.issuedAt(token));
+            if (verified == null || verified == FastHs256.FALLBACK) {
+                throw new IllegalStateException("FastHs256 did not verify " + token);
+            }
+        }
+    }
+
+    @Benchmark
+    public Claims hs256Jjwt() {
+        return jjwt.parseClaimsJws(hmacToken).getBody();
+    }
+
+    @Benchmark
+    public VerifiedToken hs256Fast() {
+        return fast.verify(hmacToken, keys, now);
+    }
+
+    @Benchmark
+    public TokenRejections.Reason hs256Precheck() {
+        return TokenPrecheck.check(hmacToken, now);
+    }
+
+    @Benchmark
+    public TokenRejections.Reason rs256Precheck() {
+        return TokenPrecheck.check(rsaToken, now);
+    }
+}
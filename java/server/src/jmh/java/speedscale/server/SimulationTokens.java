@@ -0,0 +1,62 @@
+package speedscale.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// The bearer tokens recorded in JavaDemoSimulation, read straight from its
+// source so the benchmarks always see exactly what the load test sends.
+// They were issued in the past, so benchmarks check them against a clock
+// fixed at their iat.
+final class SimulationTokens {
+
+    static final Path SOURCE = Path.of("src/test/java/JavaDemoSimulation.java");
+
+    private static final Pattern BEARER = Pattern.compile("Bearer ([A-Za-z0-9_-]+\\.[A-Za-z0-9_-]+\\.[A-Za-z0-9_-]+)");
+    private static final Pattern IAT = Pattern.compile("\"iat\":(\\d+)");
+
+    private SimulationTokens() {
+    }
+
+    // Distinct tokens using the given header alg, in the order they appear
+    static List<String> load(String alg) throws IOException {
+        String source = Files.readString(SOURCE, StandardCharsets.UTF_8);
+        Set<String> tokens = new LinkedHashSet<String>();
+        Matcher m = BEARER.matcher(source);
+        while (m.find()) {
+            String token = m.group(1);
+            if (header(token).contains("\"alg\":\"" + alg + "\"")) {
+                tokens.add(token);
+            }
+        }
+        if (tokens.isEmpty()) {
+            throw new IllegalStateException("No " + alg + " tokens in " + SOURCE);
+        }
+        return new ArrayList<String>(tokens);
+    }
+
+    // Epoch millis the token was issued at
+    static long issuedAt(String token) {
+        Matcher m = IAT.matcher(decode(token.split("\\.")[1]));
+        if (!m.find()) {
+            throw new IllegalStateException("No iat in " + token);
+        }
+        return Long.parseLong(m.group(1)) * 1000;
+    }
+
+    private static String header(String token) {
+        return decode(token.substring(0, token.indexOf('.')));
+    }
+
+    private static String decode(String segment) {
+        return new String(Base64.getUrlDecoder().decode(segment), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,82 @@
+package speedscale.server;
+
+import java.security.Key;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.jsonwebtoken.Claims;
+import io.jsonwebtoken.JwsHeader;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SigningKeyResolverAdapter;
+import io.jsonwebtoken.security.Keys;
+
+// Compares the per-request key derivation and parser construction that
+// TokenManager used to do against the startup-built key and parser.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokenManagerBenchmark {
+
+    static final String HMAC_SECRET = "this-is-a-very-good-secret-jwt-key";
+
+    TokenManager tokenManager;
+    String hmacToken;
+
+    @Setup
+    public void setup() {
+        tokenManager = new TokenManager(HMAC_SECRET, "tls.key", "tls.crt", false,
+            new SigningKeyring("", new VerifiedTokenCache(0, 0)), new TokenRejections(10000));
+        hmacToken = tokenManager.generateHmacToken("admin");
+    }
+
+    @Benchmark
+    public boolean validateHmacPrebuilt() {
+        return tokenManager.validateJwtToken(hmacToken);
+    }
+
+    @Benchmark
+    public Object validateHmacPerRequest() {
+        return Jwts.parserBuilder()
+            .setSigningKeyResolver(new SigningKeyResolverAdapter() {
+                @Override
+                public Key resolveSigningKey(JwsHeader jwsHeader, Claims claims) {
+                    return Keys.hmacShaKeyFor(HMAC_SECRET.getBytes());
+                }
+            })
+            .build()
+            .parseClaimsJws(hmacToken);
+    }
+
+    @Benchmark
+    public String signHmacPrebuilt() {
+        return tokenManager.generateHmacToken("admin");
+    }
+
+    @Benchmark
+    public String signHmacPerRequest() {
+        long ts = System.currentTimeMillis();
+        return Jwts.builder()
+            .setIssuer("java-server")
+            .setSubject("admin")
+            .setAudience("spacex-fans")
+            .setIssuedAt(new Date(ts))
+            .setExpiration(new Date(ts + TokenManager.EXPIRATION_OFFSET))
+            .setNotBefore(new Date(ts - 60 * 60 * 1000))
+            .signWith(Keys.hmacShaKeyFor(HMAC_SECRET.getBytes()))
+            .compact();
+    }
+}
@@ -0,0 +1,172 @@
+package speedscale.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Stops calling an upstream that is failing or slow. Outcomes of the last
+// windowSize calls are kept; once at least minCalls are in, the breaker
+// opens when failureRatePercent of them failed or slowCallRatePercent took
+// longer than slowCallMillis, i.e. that latency percentile is over the
+// limit. While open every call is refused at once. After openMillis up to
+// halfOpenProbes calls are let through: if they all succeed in time the
+// breaker closes with an empty window, any failure opens it again. Only
+// those probes count while half open, not calls that started earlier.
+public class CircuitBreaker {
+
+  private static final Logger log = LogManager.getLogger();
+
+  public enum State { CLOSED, OPEN, HALF_OPEN }
+
+  // Handed out by allow for each call let through, and passed back to
+  // record with its outcome
+  public static final class Permit {
+    final boolean probe;
+    final int halfOpenRound;
+
+    Permit(boolean probe, int halfOpenRound) {
+      this.probe = probe;
+      this.halfOpenRound = halfOpenRound;
+    }
+  }
+
+  private static final Permit CALL = new Permit(false, 0);
+
+  private final String name;
+  private final int minCalls;
+  private final int failureRatePercent;
+  private final long slowCallNanos;
+  private final int slowCallRatePercent;
+  private final long openMillis;
+  private final int halfOpenProbes;
+
+  // Ring of the last outcomes, guarded by this
+  private final boolean[] failed;
+  private final boolean[] slow;
+  private int next;
+  private int filled;
+  private int failedCount;
+  private int slowCount;
+
+  private State state = State.CLOSED;
+  private long openedAt;
+  private int probesStarted;
+  private int probesSucceeded;
+  // Which half-open spell a probe belongs to
+  private int halfOpenRound;
+
+  private final LongAdder opens = new LongAdder();
+  private final LongAdder shortCircuited = new LongAdder();
+
+  public CircuitBreaker(String name, int windowSize, int minCalls, int failureRatePercent,
+      long slowCallMillis, int slowCallRatePercent, long openMillis, int halfOpenProbes) {
+    this.name = name;
+    this.failed = new boolean[windowSize];
+    this.slow = new boolean[windowSize];
+    this.minCalls = Math.min(minCalls, windowSize);
+    this.failureRatePercent = failureRatePercent;
+    this.slowCallNanos = slowCallMillis * 1_000_000;
+    this.slowCallRatePercent = slowCallRatePercent;
+    this.openMillis = openMillis;
+    this.halfOpenProbes = halfOpenProbes;
+  }
+
+  // Null when the call may not go ahead. Every permit handed out must be
+  // followed by exactly one record.
+  public synchronized Permit allow() {
+    if (state == State.OPEN) {
+      if (System.currentTimeMillis() - openedAt < openMillis) {
+        shortCircuited.increment();
+        return null;
+      }
+      state = State.HALF_OPEN;
+      probesStarted = 0;
+      probesSucceeded = 0;
+      halfOpenRound++;
+    }
+    if (state == State.HALF_OPEN) {
+      if (probesStarted >= halfOpenProbes) {
+        shortCircuited.increment();
+        return null;
+      }
+      probesStarted++;
+      return new Permit(true, halfOpenRound);
+    }
+    return CALL;
+  }
+
+  public synchronized void record(Permit permit, boolean success, long nanos) {
+    boolean tooSlow = nanos > slowCallNanos;
+    if (state == State.OPEN) {
+      // Calls that started before it opened
+      return;
+    }
+    if (state == State.HALF_OPEN) {
+      if (!permit.probe || permit.halfOpenRound != halfOpenRound) {
+        // Started before it opened, or a probe of an earlier round
+        return;
+      }
+      if (!success || tooSlow) {
+        open("a half-open probe " + (success ? "was slow" : "failed"));
+      } else if (++probesSucceeded >= halfOpenProbes) {
+        close();
+      }
+      return;
+    }
+
+    if (filled == failed.length) {
+      failedCount -= failed[next] ? 1 : 0;
+      slowCount -= slow[next] ? 1 : 0;
+    } else {
+      filled++;
+    }
+    failed[next] = !success;
+    slow[next] = tooSlow;
+    failedCount += success ? 0 : 1;
+    slowCount += tooSlow ? 1 : 0;
+    next = (next + 1) % failed.length;
+
+    if (filled >= minCalls) {
+      if (failedCount * 100 >= failureRatePercent * filled) {
+        open(failedCount + " of the last " + filled + " calls failed");
+      } else if (slowCount * 100 >= slowCallRatePercent * filled) {
+        open(slowCount + " of the last " + filled + " calls took over " + slowCallNanos / 1_000_000 + "ms");
+      }
+    }
+  }
+
+  public synchronized State state() {
+    return state;
+  }
+
+  public Map<String, Long> stats() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    synchronized (this) {
+      m.put("breaker_state", (long) state.ordinal());
+      m.put("breaker_window_calls", (long) filled);
+      m.put("breaker_window_failed", (long) failedCount);
+      m.put("breaker_window_slow", (long) slowCount);
+    }
+    m.put("breaker_opens", opens.sum());
+    m.put("breaker_short_circuited", shortCircuited.sum());
+    return m;
+  }
+
+  private void open(String why) {
+    state = State.OPEN;
+    openedAt = System.currentTimeMillis();
+    opens.increment();
+    log.warn("Circuit for " + name + " opened for " + openMillis + "ms: " + why);
+  }
+
+  private void close() {
+    state = State.CLOSED;
+    next = 0;
+    filled = 0;
+    failedCount = 0;
+    slowCount = 0;
+    log.info("Circuit for " + name + " closed");
+  }
+}
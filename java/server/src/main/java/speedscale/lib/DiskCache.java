@@ -0,0 +1,314 @@
+package speedscale.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Append-only, memory-mapped file under the in-memory ResponseCaches, so a
+// restarted server starts warm. Every put appends a record and an index in
+// memory points at the latest record of each key; get hands out a
+// read-only slice of the mapping, with no read call and no copy. The file
+// is mapped at its full maxBytes up front. When it is full, the records
+// not yet past staleUntil are copied to a new file that replaces it, and
+// puts that still do not fit are dropped. On open the file is read back up
+// to the first torn record or bad checksum. Writes go to the page cache
+// only: a killed process loses nothing, a power cut may.
+public class DiskCache {
+
+  private static final Logger log = LogManager.getLogger();
+
+  private static final long MAGIC = 0x5353434143484531L; // SSCACHE1
+  private static final int FILE_HEADER = 8;
+  // keyLength, valueLength, expiresAt, staleUntil, crc of the rest
+  private static final int RECORD_HEADER = 28;
+  // A file that compaction leaves mostly full is not copied over and over
+  private static final long MIN_COMPACTION_INTERVAL_MILLIS = 10000;
+
+  // A value as stored, valid for as long as it is referenced
+  public static final class Hit {
+    public final ByteBuffer value;
+    public final long expiresAt;
+    public final long staleUntil;
+
+    Hit(ByteBuffer value, long expiresAt, long staleUntil) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.staleUntil = staleUntil;
+    }
+  }
+
+  // Where the latest record of a key is. Holds on to its own mapping, which
+  // stays readable after compaction has moved on to a new file.
+  private static final class Slot {
+    final MappedByteBuffer file;
+    final int offset;
+    final int keyLength;
+    final int valueLength;
+    final long expiresAt;
+    final long staleUntil;
+
+    Slot(MappedByteBuffer file, int offset, int keyLength, int valueLength, long expiresAt, long staleUntil) {
+      this.file = file;
+      this.offset = offset;
+      this.keyLength = keyLength;
+      this.valueLength = valueLength;
+      this.expiresAt = expiresAt;
+      this.staleUntil = staleUntil;
+    }
+
+    int size() {
+      return RECORD_HEADER + keyLength + valueLength;
+    }
+  }
+
+  private static final class Configured {
+    static final DiskCache instance = openConfigured();
+  }
+
+  private final Path path;
+  private final int maxBytes;
+  // Held open for the lock, one process per file
+  private final FileChannel lock;
+  private final ConcurrentHashMap<String, Slot> index = new ConcurrentHashMap<String, Slot>();
+
+  // Guarded by this
+  private MappedByteBuffer map;
+  private int end;
+  private long lastCompaction;
+  private boolean compactedMostlyFull;
+
+  private final int recovered;
+  private final LongAdder writes = new LongAdder();
+  private final LongAdder dropped = new LongAdder();
+  private final LongAdder compactions = new LongAdder();
+
+  private DiskCache(Path path, int maxBytes) throws IOException {
+    this.path = path;
+    this.maxBytes = maxBytes;
+    this.lock = FileChannel.open(Paths.get(path + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    if (lock.tryLock() == null) {
+      lock.close();
+      throw new IOException(path + " is in use by another process");
+    }
+    this.map = map(path, false);
+    this.end = recover();
+    this.recovered = index.size();
+    long now = System.currentTimeMillis();
+    long live = 0;
+    for (Slot s : index.values()) {
+      live += s.staleUntil > now ? s.size() : 0;
+    }
+    if (live * 2 < end - FILE_HEADER) {
+      compact();
+    }
+  }
+
+  public static DiskCache open(Path path, int maxBytes) throws IOException {
+    return new DiskCache(path, maxBytes);
+  }
+
+  // The cache at -Dspeedscale.diskCache.file, at most
+  // speedscale.diskCache.maxMegabytes (64) big. Null when the property is
+  // unset or the file cannot be opened.
+  public static DiskCache configured() {
+    return Configured.instance;
+  }
+
+  public Hit get(String key) {
+    Slot s = index.get(key);
+    if (s == null) {
+      return null;
+    }
+    ByteBuffer value = s.file.slice(s.offset + RECORD_HEADER + s.keyLength, s.valueLength).asReadOnlyBuffer();
+    return new Hit(value, s.expiresAt, s.staleUntil);
+  }
+
+  // False when there is no room even after compaction
+  public synchronized boolean put(String key, byte[] value, long expiresAt, long staleUntil) {
+    byte[] k = key.getBytes(StandardCharsets.UTF_8);
+    if (!fits(RECORD_HEADER + k.length + value.length)) {
+      dropped.increment();
+      return false;
+    }
+    index.put(key, append(k, value, expiresAt, staleUntil));
+    writes.increment();
+    return true;
+  }
+
+  // Appends a tombstone, a record that expired at 0, for every key that
+  // starts with prefix
+  public synchronized void removeAll(String prefix) {
+    for (String key : index.keySet()) {
+      if (key.startsWith(prefix)) {
+        index.remove(key);
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        if (fits(RECORD_HEADER + k.length)) {
+          append(k, new byte[0], 0, 0);
+        }
+      }
+    }
+  }
+
+  public Map<String, Long> stats() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    m.put("entries", (long) index.size());
+    synchronized (this) {
+      m.put("used_bytes", (long) end);
+    }
+    m.put("max_bytes", (long) maxBytes);
+    m.put("recovered", (long) recovered);
+    m.put("writes", writes.sum());
+    m.put("dropped", dropped.sum());
+    m.put("compactions", compactions.sum());
+    return m;
+  }
+
+  private static DiskCache openConfigured() {
+    String file = System.getProperty("speedscale.diskCache.file");
+    if (file == null || file.isEmpty()) {
+      return null;
+    }
+    try {
+      DiskCache cache = open(Paths.get(file), Integer.getInteger("speedscale.diskCache.maxMegabytes", 64) << 20);
+      log.info("Disk cache " + file + " opened with " + cache.recovered + " entries");
+      return cache;
+    } catch (IOException e) {
+      log.warn("Disk cache " + file + " could not be opened, caching in memory only: " + e);
+      return null;
+    }
+  }
+
+  private MappedByteBuffer map(Path p, boolean truncate) throws IOException {
+    try (FileChannel ch = truncate
+        ? FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)
+        : FileChannel.open(p, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      // Grows the file to maxBytes, sparse until written
+      return ch.map(FileChannel.MapMode.READ_WRITE, 0, maxBytes);
+    }
+  }
+
+  // Indexes the records already in the file and returns where they end. A
+  // file that is new, or not one of ours, starts over empty.
+  private int recover() {
+    if (map.getLong(0) != MAGIC) {
+      map.putLong(0, MAGIC);
+      map.putInt(FILE_HEADER, 0);
+      return FILE_HEADER;
+    }
+    int pos = FILE_HEADER;
+    while (pos + RECORD_HEADER <= maxBytes) {
+      int keyLength = map.getInt(pos);
+      int valueLength = map.getInt(pos + 4);
+      if (keyLength <= 0 || valueLength < 0 || (long) keyLength + valueLength > maxBytes - pos - RECORD_HEADER) {
+        break;
+      }
+      if (map.getInt(pos + 24) != crc(map, pos, keyLength, valueLength)) {
+        log.warn("Disk cache " + path + " has a bad record at " + pos + ", dropping it and everything after");
+        break;
+      }
+      byte[] k = new byte[keyLength];
+      map.get(pos + RECORD_HEADER, k);
+      String key = new String(k, StandardCharsets.UTF_8);
+      long staleUntil = map.getLong(pos + 16);
+      if (staleUntil == 0) {
+        index.remove(key);
+      } else {
+        index.put(key, new Slot(map, pos, keyLength, valueLength, map.getLong(pos + 8), staleUntil));
+      }
+      pos += RECORD_HEADER + keyLength + valueLength;
+    }
+    return pos;
+  }
+
+  // Whether size more bytes can be appended, compacting first if need be
+  private boolean fits(int size) {
+    if (end + size <= maxBytes) {
+      return true;
+    }
+    if (size > maxBytes - FILE_HEADER || (compactedMostlyFull
+        && System.currentTimeMillis() - lastCompaction < MIN_COMPACTION_INTERVAL_MILLIS)) {
+      return false;
+    }
+    try {
+      compact();
+    } catch (IOException e) {
+      log.warn("Compacting disk cache " + path + " failed: " + e);
+      compactedMostlyFull = true;
+      return false;
+    }
+    return end + size <= maxBytes;
+  }
+
+  private Slot append(byte[] key, byte[] value, long expiresAt, long staleUntil) {
+    int pos = end;
+    map.putInt(pos, key.length);
+    map.putInt(pos + 4, value.length);
+    map.putLong(pos + 8, expiresAt);
+    map.putLong(pos + 16, staleUntil);
+    map.put(pos + RECORD_HEADER, key);
+    map.put(pos + RECORD_HEADER + key.length, value);
+    map.putInt(pos + 24, crc(map, pos, key.length, value.length));
+    end = pos + RECORD_HEADER + key.length + value.length;
+    // Marks the end, in case a torn record was there before
+    if (end + 4 <= maxBytes) {
+      map.putInt(end, 0);
+    }
+    return new Slot(map, pos, key.length, value.length, expiresAt, staleUntil);
+  }
+
+  // Copies the records still servable to a new file and swaps it in. Hits
+  // handed out before keep reading the old mapping.
+  private void compact() throws IOException {
+    long now = System.currentTimeMillis();
+    lastCompaction = now;
+    Path tmp = path.resolveSibling(path.getFileName() + ".compact");
+    MappedByteBuffer m = map(tmp, true);
+    m.putLong(0, MAGIC);
+    int pos = FILE_HEADER;
+    Map<String, Slot> moved = new HashMap<String, Slot>();
+    for (Map.Entry<String, Slot> e : index.entrySet()) {
+      Slot s = e.getValue();
+      if (s.staleUntil <= now) {
+        continue;
+      }
+      m.put(pos, s.file, s.offset, s.size());
+      moved.put(e.getKey(), new Slot(m, pos, s.keyLength, s.valueLength, s.expiresAt, s.staleUntil));
+      pos += s.size();
+    }
+    if (pos + 4 <= maxBytes) {
+      m.putInt(pos, 0);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.info("Compacted disk cache " + path + " from " + end + " to " + pos + " bytes");
+    index.keySet().retainAll(moved.keySet());
+    index.putAll(moved);
+    map = m;
+    end = pos;
+    compactedMostlyFull = pos > maxBytes / 2;
+    compactions.increment();
+  }
+
+  // Over the record at pos but its crc field
+  private static int crc(ByteBuffer b, int pos, int keyLength, int valueLength) {
+    CRC32 crc = new CRC32();
+    crc.update(b.slice(pos, 24));
+    crc.update(b.slice(pos + RECORD_HEADER, keyLength + valueLength));
+    return (int) crc.getValue();
+  }
+}
@@ -0,0 +1,95 @@
+package speedscale.lib;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// When to send a second copy of a slow request, and whether we can afford
+// to. The delay is the given percentile of the latest single-request
+// latencies, so only the slowest few percent get a hedge. Every request
+// earns budgetPercent of a hedge, capped at a few banked hedges, and each
+// hedge spends a whole one, so hedging adds at most budgetPercent load
+// even when the upstream is slow across the board.
+public class HedgePolicy {
+
+  private static final int SAMPLES = 512;
+  private static final int MIN_SAMPLES = 50;
+  private static final int RECOMPUTE_EVERY = 64;
+  // Budget in thousandths of a hedge
+  private static final long HEDGE_COST = 1000;
+  private static final long MAX_BANKED = 10 * HEDGE_COST;
+
+  private final double percentile;
+  private final long minDelayNanos;
+  private final long earnedPerRequest;
+
+  // Latest latencies, guarded by this
+  private final long[] samples = new long[SAMPLES];
+  private int next;
+  private int filled;
+  private int sinceRecompute;
+  private volatile long delayNanos = -1;
+
+  private final AtomicLong budget = new AtomicLong();
+  private final LongAdder hedges = new LongAdder();
+  private final LongAdder wins = new LongAdder();
+  private final LongAdder overBudget = new LongAdder();
+
+  public HedgePolicy(double percentile, long minDelayMillis, double budgetPercent) {
+    this.percentile = percentile;
+    this.minDelayNanos = minDelayMillis * 1_000_000;
+    this.earnedPerRequest = Math.round(budgetPercent * HEDGE_COST / 100);
+  }
+
+  // How long to wait for the first attempt, -1 until there are enough
+  // samples to tell what slow is
+  public long delayNanos() {
+    return delayNanos;
+  }
+
+  public void onRequest() {
+    budget.accumulateAndGet(earnedPerRequest, (b, earned) -> Math.min(MAX_BANKED, b + earned));
+  }
+
+  // Spends one hedge from the budget if there is one
+  public boolean tryHedge() {
+    long b;
+    while ((b = budget.get()) >= HEDGE_COST) {
+      if (budget.compareAndSet(b, b - HEDGE_COST)) {
+        hedges.increment();
+        return true;
+      }
+    }
+    overBudget.increment();
+    return false;
+  }
+
+  public void hedgeWon() {
+    wins.increment();
+  }
+
+  public synchronized void sample(long nanos) {
+    samples[next] = nanos;
+    next = (next + 1) % SAMPLES;
+    filled = Math.min(filled + 1, SAMPLES);
+    if (filled >= MIN_SAMPLES && (++sinceRecompute >= RECOMPUTE_EVERY || delayNanos < 0)) {
+      sinceRecompute = 0;
+      long[] sorted = Arrays.copyOf(samples, filled);
+      Arrays.sort(sorted);
+      int i = (int) Math.min(filled - 1, Math.ceil(filled * percentile / 100) - 1);
+      delayNanos = Math.max(minDelayNanos, sorted[Math.max(0, i)]);
+    }
+  }
+
+  public Map<String, Long> stats() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    long delay = delayNanos;
+    m.put("hedge_delay_ms", delay < 0 ? -1 : delay / 1_000_000);
+    m.put("hedges", hedges.sum());
+    m.put("hedge_wins", wins.sum());
+    m.put("hedges_over_budget", overBudget.sum());
+    return m;
+  }
+}
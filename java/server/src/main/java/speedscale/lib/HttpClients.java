@@ -0,0 +1,43 @@
+package speedscale.lib;
+
+import java.net.http.HttpClient;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// Starts the HttpClient builder each Upstream finishes. With
+// -Dspeedscale.virtualThreads=true the client runs its send and
+// completion work on virtual threads, matching the request threads, which
+// application.properties switches with the same property.
+public class HttpClients {
+
+  private static final Logger log = LogManager.getLogger();
+
+  public static final boolean virtualThreads =
+      Boolean.getBoolean("speedscale.virtualThreads");
+
+  public static HttpClient.Builder newBuilder() {
+    HttpClient.Builder builder = HttpClient.newBuilder();
+    Executor executor = virtualThreads ? virtualThreadExecutor() : null;
+    if (executor != null) {
+      log.info("Upstream calls run on virtual threads");
+      builder.executor(executor);
+    }
+    return builder;
+  }
+
+  // Looked up reflectively because the build targets Java 17, virtual
+  // threads need a Java 21+ runtime
+  private static Executor virtualThreadExecutor() {
+    try {
+      return (Executor) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+    } catch (ReflectiveOperationException e) {
+      log.warn("Virtual threads need Java 21 or newer, "
+          + "HttpClient stays on platform threads");
+      return null;
+    }
+  }
+}
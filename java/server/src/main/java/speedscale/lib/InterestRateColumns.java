@@ -0,0 +1,190 @@
+package speedscale.lib;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import speedscale.model.TreasuryResponse;
+
+// avg_interest_rates records held column by column: one primitive array per
+// field, record_date as an epoch day, and the two description strings
+// dictionary encoded since there are only a few dozen distinct values. A
+// row is 26 bytes of array slots instead of a Record, a Date and two
+// Strings of its own. Rows are in record_date order. Immutable, build a new
+// one with Builder; record(row) materializes a Record for responses.
+public class InterestRateColumns {
+
+  private final int size;
+  private final int[] day;
+  private final float[] rate;
+  private final int[] securityType;
+  private final int[] security;
+  private final short[] srcLine;
+  private final short[] fiscalYear;
+  private final byte[] fiscalQuarter;
+  private final short[] calendarYear;
+  private final byte[] calendarQuarter;
+  private final byte[] calendarMonth;
+  private final byte[] calendarDay;
+  private final String[] securityTypes;
+  private final String[] securities;
+
+  private InterestRateColumns(Builder b) {
+    size = b.size;
+    day = Arrays.copyOf(b.day, size);
+    rate = Arrays.copyOf(b.rate, size);
+    securityType = Arrays.copyOf(b.securityType, size);
+    security = Arrays.copyOf(b.security, size);
+    srcLine = Arrays.copyOf(b.srcLine, size);
+    fiscalYear = Arrays.copyOf(b.fiscalYear, size);
+    fiscalQuarter = Arrays.copyOf(b.fiscalQuarter, size);
+    calendarYear = Arrays.copyOf(b.calendarYear, size);
+    calendarQuarter = Arrays.copyOf(b.calendarQuarter, size);
+    calendarMonth = Arrays.copyOf(b.calendarMonth, size);
+    calendarDay = Arrays.copyOf(b.calendarDay, size);
+    securityTypes = b.securityTypes.toArray(new String[0]);
+    securities = b.securities.toArray(new String[0]);
+  }
+
+  // records must be in record_date order
+  public static InterestRateColumns of(Iterable<TreasuryResponse.Record> records) {
+    Builder b = new Builder();
+    for (TreasuryResponse.Record r : records) {
+      b.add(r);
+    }
+    return b.build();
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public int epochDay(int row) {
+    return day[row];
+  }
+
+  public float rate(int row) {
+    return rate[row];
+  }
+
+  // Index into securityTypes(), -1 when the record had none
+  public int securityTypeCode(int row) {
+    return securityType[row];
+  }
+
+  public String[] securityTypes() {
+    return securityTypes.clone();
+  }
+
+  // First row whose record_date is on or after epochDay
+  public int lowerBound(long epochDay) {
+    int lo = 0;
+    int hi = size;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (day[mid] < epochDay) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  public TreasuryResponse.Record record(int row) {
+    TreasuryResponse.Record r = new TreasuryResponse.Record();
+    r.record_date = Date.from(LocalDate.ofEpochDay(day[row]).atStartOfDay(ZoneOffset.UTC).toInstant());
+    r.security_type_desc = securityType[row] < 0 ? null : securityTypes[securityType[row]];
+    r.security_desc = security[row] < 0 ? null : securities[security[row]];
+    r.avg_interest_rate_amt = rate[row];
+    r.src_line_nbr = srcLine[row];
+    r.record_fiscal_year = fiscalYear[row];
+    r.record_fiscal_quarter = fiscalQuarter[row];
+    r.record_calendar_year = calendarYear[row];
+    r.record_calendar_quarter = calendarQuarter[row];
+    r.record_calendar_month = calendarMonth[row];
+    r.record_calendar_day = calendarDay[row];
+    return r;
+  }
+
+  // Appends rows in record_date order
+  public static class Builder {
+    private int size;
+    private int[] day = new int[64];
+    private float[] rate = new float[64];
+    private int[] securityType = new int[64];
+    private int[] security = new int[64];
+    private short[] srcLine = new short[64];
+    private short[] fiscalYear = new short[64];
+    private byte[] fiscalQuarter = new byte[64];
+    private short[] calendarYear = new short[64];
+    private byte[] calendarQuarter = new byte[64];
+    private byte[] calendarMonth = new byte[64];
+    private byte[] calendarDay = new byte[64];
+    private final List<String> securityTypes = new ArrayList<String>();
+    private final List<String> securities = new ArrayList<String>();
+    private final Map<String, Integer> securityTypeCodes = new HashMap<String, Integer>();
+    private final Map<String, Integer> securityCodes = new HashMap<String, Integer>();
+
+    public Builder add(TreasuryResponse.Record r) {
+      grow();
+      day[size] = (int) r.record_date.toInstant().atZone(ZoneOffset.UTC).toLocalDate().toEpochDay();
+      rate[size] = r.avg_interest_rate_amt;
+      securityType[size] = code(r.security_type_desc, securityTypes, securityTypeCodes);
+      security[size] = code(r.security_desc, securities, securityCodes);
+      srcLine[size] = (short) r.src_line_nbr;
+      fiscalYear[size] = (short) r.record_fiscal_year;
+      fiscalQuarter[size] = (byte) r.record_fiscal_quarter;
+      calendarYear[size] = (short) r.record_calendar_year;
+      calendarQuarter[size] = (byte) r.record_calendar_quarter;
+      calendarMonth[size] = (byte) r.record_calendar_month;
+      calendarDay[size] = (byte) r.record_calendar_day;
+      size++;
+      return this;
+    }
+
+    // Copies rows [from, to) of another set of columns
+    public Builder addAll(InterestRateColumns c, int from, int to) {
+      for (int row = from; row < to; row++) {
+        add(c.record(row));
+      }
+      return this;
+    }
+
+    public InterestRateColumns build() {
+      return new InterestRateColumns(this);
+    }
+
+    private void grow() {
+      if (size < day.length) {
+        return;
+      }
+      int n = day.length * 2;
+      day = Arrays.copyOf(day, n);
+      rate = Arrays.copyOf(rate, n);
+      securityType = Arrays.copyOf(securityType, n);
+      security = Arrays.copyOf(security, n);
+      srcLine = Arrays.copyOf(srcLine, n);
+      fiscalYear = Arrays.copyOf(fiscalYear, n);
+      fiscalQuarter = Arrays.copyOf(fiscalQuarter, n);
+      calendarYear = Arrays.copyOf(calendarYear, n);
+      calendarQuarter = Arrays.copyOf(calendarQuarter, n);
+      calendarMonth = Arrays.copyOf(calendarMonth, n);
+      calendarDay = Arrays.copyOf(calendarDay, n);
+    }
+
+    private static int code(String value, List<String> values, Map<String, Integer> codes) {
+      if (value == null) {
+        return -1;
+      }
+      return codes.computeIfAbsent(value, v -> {
+        values.add(v);
+        return values.size() - 1;
+      });
+    }
+  }
+}
@@ -0,0 +1,148 @@
+package speedscale.lib;
+
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import speedscale.model.InterestRateRange;
+
+// Max and min avg_interest_rate_amt over any record_date range, overall or
+// for one security_type_desc. Each is a sparse table over rows of the
+// columns in date order: finding the range is two binary searches and the
+// answer two table lookups, however many years are held. Immutable, build a
+// new one when the columns change. Ties keep the earliest record.
+public class InterestRateIndex {
+
+  private final InterestRateColumns columns;
+  private final Table all;
+  private final Map<String, Table> byType = new HashMap<String, Table>();
+
+  public InterestRateIndex(InterestRateColumns columns) {
+    this.columns = columns;
+    int n = columns.size();
+    String[] types = columns.securityTypes();
+    int[] typeCounts = new int[types.length];
+    for (int row = 0; row < n; row++) {
+      if (columns.securityTypeCode(row) >= 0) {
+        typeCounts[columns.securityTypeCode(row)]++;
+      }
+    }
+    int[][] typeRows = new int[types.length][];
+    for (int t = 0; t < types.length; t++) {
+      typeRows[t] = new int[typeCounts[t]];
+      typeCounts[t] = 0;
+    }
+    int[] allRows = new int[n];
+    for (int row = 0; row < n; row++) {
+      allRows[row] = row;
+      int t = columns.securityTypeCode(row);
+      if (t >= 0) {
+        typeRows[t][typeCounts[t]++] = row;
+      }
+    }
+    all = new Table(columns, allRows);
+    for (int t = 0; t < types.length; t++) {
+      byType.put(types[t], new Table(columns, typeRows[t]));
+    }
+  }
+
+  public int size() {
+    return columns.size();
+  }
+
+  // from and to are inclusive, securityType null for all records
+  public InterestRateRange query(LocalDate from, LocalDate to, String securityType) {
+    InterestRateRange range = new InterestRateRange();
+    range.from = from;
+    range.to = to;
+    range.security_type_desc = securityType;
+    Table t = securityType == null ? all : byType.get(securityType);
+    if (t == null) {
+      return range;
+    }
+    int lo = t.lowerBound(from.toEpochDay());
+    int hi = t.lowerBound(to.toEpochDay() + 1) - 1;
+    if (lo > hi) {
+      return range;
+    }
+    range.count = hi - lo + 1;
+    range.max = columns.record(t.rows[t.max(lo, hi)]);
+    range.min = columns.record(t.rows[t.min(lo, hi)]);
+    return range;
+  }
+
+  private static final class Table {
+    final InterestRateColumns columns;
+    // Rows of columns in this table, ascending
+    final int[] rows;
+    // maxAt[k][i] is the position in rows of the max of rows[i .. i + 2^k - 1]
+    final int[][] maxAt;
+    final int[][] minAt;
+
+    Table(InterestRateColumns columns, int[] rows) {
+      this.columns = columns;
+      this.rows = rows;
+      int n = rows.length;
+      int levels = n == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(n);
+      maxAt = new int[levels][];
+      minAt = new int[levels][];
+      if (levels == 0) {
+        return;
+      }
+      maxAt[0] = new int[n];
+      minAt[0] = new int[n];
+      for (int i = 0; i < n; i++) {
+        maxAt[0][i] = i;
+        minAt[0][i] = i;
+      }
+      for (int k = 1; k < levels; k++) {
+        int half = 1 << (k - 1);
+        int width = n - (1 << k) + 1;
+        maxAt[k] = new int[width];
+        minAt[k] = new int[width];
+        for (int i = 0; i < width; i++) {
+          maxAt[k][i] = higher(maxAt[k - 1][i], maxAt[k - 1][i + half]);
+          minAt[k][i] = lower(minAt[k - 1][i], minAt[k - 1][i + half]);
+        }
+      }
+    }
+
+    // First position whose record_date is on or after epochDay
+    int lowerBound(long epochDay) {
+      int lo = 0;
+      int hi = rows.length;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (columns.epochDay(rows[mid]) < epochDay) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      return lo;
+    }
+
+    int max(int lo, int hi) {
+      int k = 31 - Integer.numberOfLeadingZeros(hi - lo + 1);
+      return higher(maxAt[k][lo], maxAt[k][hi - (1 << k) + 1]);
+    }
+
+    int min(int lo, int hi) {
+      int k = 31 - Integer.numberOfLeadingZeros(hi - lo + 1);
+      return lower(minAt[k][lo], minAt[k][hi - (1 << k) + 1]);
+    }
+
+    // The two windows overlap, so a tie may be the same position twice;
+    // the earlier position wins either way
+    private int higher(int a, int b) {
+      float x = columns.rate(rows[a]);
+      float y = columns.rate(rows[b]);
+      return y > x || (y == x && b < a) ? b : a;
+    }
+
+    private int lower(int a, int b) {
+      float x = columns.rate(rows[a]);
+      float y = columns.rate(rows[b]);
+      return y < x || (y == x && b < a) ? b : a;
+    }
+  }
+}
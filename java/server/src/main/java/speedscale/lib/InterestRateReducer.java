@@ -0,0 +1,196 @@
+package speedscale.lib;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.StdDateFormat;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Date;
+import speedscale.model.InterestRateStats;
+import speedscale.model.TreasuryResponse;
+
+// Reduces an avg_interest_rates response to InterestRateStats as the tokens
+// stream in. One scratch record is reused for every element and only the
+// current min and max are kept, so memory stays flat however many records
+// the year has accumulated. Ties keep the first record seen, like the
+// list scan it replaces.
+public class InterestRateReducer {
+
+  private static final JsonFactory factory = new JsonFactory();
+
+  public static InterestRateStats reduce(InputStream body) throws IOException {
+    try (JsonParser p = factory.createParser(body)) {
+      return reduce(p);
+    }
+  }
+
+  public static InterestRateStats reduce(String body) throws IOException {
+    try (JsonParser p = factory.createParser(body)) {
+      return reduce(p);
+    }
+  }
+
+  // Same aggregates over rows [from, size) of columns already in memory,
+  // read in place; only the max and min rows become Records
+  public static InterestRateStats reduce(InterestRateColumns c, int from) {
+    InterestRateStats stats = new InterestRateStats();
+    String[] types = c.securityTypes();
+    InterestRateStats.Summary[] summaries = new InterestRateStats.Summary[types.length];
+    int max = -1;
+    int min = -1;
+    for (int row = from; row < c.size(); row++) {
+      float rate = c.rate(row);
+      stats.count++;
+      if (max < 0 || c.rate(max) < rate) {
+        max = row;
+      }
+      if (min < 0 || c.rate(min) > rate) {
+        min = row;
+      }
+      int t = c.securityTypeCode(row);
+      if (t >= 0) {
+        if (summaries[t] == null) {
+          summaries[t] = new InterestRateStats.Summary();
+          stats.by_security_type.put(types[t], summaries[t]);
+        }
+        summaries[t].add(rate);
+      }
+    }
+    stats.max = max < 0 ? null : c.record(max);
+    stats.min = min < 0 ? null : c.record(min);
+    return stats;
+  }
+
+  private static InterestRateStats reduce(JsonParser p) throws IOException {
+    InterestRateStats stats = new InterestRateStats();
+    if (p.nextToken() != JsonToken.START_OBJECT) {
+      throw new IOException("Expected a JSON object");
+    }
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.currentName();
+      JsonToken value = p.nextToken();
+      if ("data".equals(name) && value == JsonToken.START_ARRAY) {
+        TreasuryResponse.Record scratch = new TreasuryResponse.Record();
+        while (p.nextToken() == JsonToken.START_OBJECT) {
+          readRecord(p, scratch);
+          add(stats, scratch);
+        }
+      } else {
+        p.skipChildren();
+      }
+    }
+    return stats;
+  }
+
+  private static void add(InterestRateStats stats, TreasuryResponse.Record r) {
+    stats.count++;
+    if (stats.max == null || stats.max.avg_interest_rate_amt < r.avg_interest_rate_amt) {
+      stats.max = copy(r);
+    }
+    if (stats.min == null || stats.min.avg_interest_rate_amt > r.avg_interest_rate_amt) {
+      stats.min = copy(r);
+    }
+    if (r.security_type_desc != null) {
+      stats.by_security_type
+          .computeIfAbsent(r.security_type_desc, k -> new InterestRateStats.Summary())
+          .add(r.avg_interest_rate_amt);
+    }
+  }
+
+  // Same coercions TreasuryResponse gets from databind: the API sends
+  // every value as a string
+  private static void readRecord(JsonParser p, TreasuryResponse.Record r) throws IOException {
+    clear(r);
+    while (p.nextToken() == JsonToken.FIELD_NAME) {
+      String name = p.currentName();
+      JsonToken token = p.nextToken();
+      if (token == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      switch (name) {
+        case "record_date":
+          r.record_date = date(p.getText());
+          break;
+        case "security_type_desc":
+          r.security_type_desc = p.getText();
+          break;
+        case "security_desc":
+          r.security_desc = p.getText();
+          break;
+        case "avg_interest_rate_amt":
+          r.avg_interest_rate_amt = (float) p.getValueAsDouble();
+          break;
+        case "src_line_nbr":
+          r.src_line_nbr = p.getValueAsInt();
+          break;
+        case "record_fiscal_year":
+          r.record_fiscal_year = p.getValueAsInt();
+          break;
+        case "record_fiscal_quarter":
+          r.record_fiscal_quarter = p.getValueAsInt();
+          break;
+        case "record_calendar_year":
+          r.record_calendar_year = p.getValueAsInt();
+          break;
+        case "record_calendar_quarter":
+          r.record_calendar_quarter = p.getValueAsInt();
+          break;
+        case "record_calendar_month":
+          r.record_calendar_month = p.getValueAsInt();
+          break;
+        case "record_calendar_day":
+          r.record_calendar_day = p.getValueAsInt();
+          break;
+        default:
+          p.skipChildren();
+      }
+    }
+  }
+
+  // Plain dates are all the API sends, anything else goes through
+  // Jackson's own parser
+  private static Date date(String text) throws IOException {
+    if (text.length() == 10) {
+      return Date.from(LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+    try {
+      return new StdDateFormat().parse(text);
+    } catch (ParseException e) {
+      throw new IOException("Bad record_date " + text, e);
+    }
+  }
+
+  private static void clear(TreasuryResponse.Record r) {
+    r.record_date = null;
+    r.security_type_desc = null;
+    r.security_desc = null;
+    r.avg_interest_rate_amt = 0;
+    r.src_line_nbr = 0;
+    r.record_fiscal_year = 0;
+    r.record_fiscal_quarter = 0;
+    r.record_calendar_year = 0;
+    r.record_calendar_quarter = 0;
+    r.record_calendar_month = 0;
+    r.record_calendar_day = 0;
+  }
+
+  private static TreasuryResponse.Record copy(TreasuryResponse.Record r) {
+    TreasuryResponse.Record c = new TreasuryResponse.Record();
+    c.record_date = r.record_date;
+    c.security_type_desc = r.security_type_desc;
+    c.security_desc = r.security_desc;
+    c.avg_interest_rate_amt = r.avg_interest_rate_amt;
+    c.src_line_nbr = r.src_line_nbr;
+    c.record_fiscal_year = r.record_fiscal_year;
+    c.record_fiscal_quarter = r.record_fiscal_quarter;
+    c.record_calendar_year = r.record_calendar_year;
+    c.record_calendar_quarter = r.record_calendar_quarter;
+    c.record_calendar_month = r.record_calendar_month;
+    c.record_calendar_day = r.record_calendar_day;
+    return c;
+  }
+}
@@ -0,0 +1,70 @@
+package speedscale.lib;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-bucket latency histogram, cheap enough to record every upstream
+// call. Buckets are cumulative like Prometheus' le buckets; percentiles
+// are the upper bound of the bucket they fall in.
+public class LatencyHistogram {
+
+  private static final long[] BOUNDS_MILLIS =
+      {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+  // One per bound plus one for everything slower
+  private final LongAdder[] buckets = new LongAdder[BOUNDS_MILLIS.length + 1];
+  private final LongAdder totalNanos = new LongAdder();
+
+  public LatencyHistogram() {
+    for (int i = 0; i < buckets.length; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  public void record(long nanos) {
+    long millis = nanos / 1_000_000;
+    int i = 0;
+    while (i < BOUNDS_MILLIS.length && millis > BOUNDS_MILLIS[i]) {
+      i++;
+    }
+    buckets[i].increment();
+    totalNanos.add(nanos);
+  }
+
+  // Adds <prefix>_count, _total_ms, _p50_ms, _p99_ms and the _le_<n>ms
+  // buckets to m
+  public void stats(String prefix, Map<String, Long> m) {
+    long[] counts = new long[buckets.length];
+    long n = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      counts[i] = buckets[i].sum();
+      n += counts[i];
+    }
+    m.put(prefix + "_count", n);
+    m.put(prefix + "_total_ms", totalNanos.sum() / 1_000_000);
+    m.put(prefix + "_p50_ms", percentile(counts, n, 0.50));
+    m.put(prefix + "_p99_ms", percentile(counts, n, 0.99));
+    long cumulative = 0;
+    for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+      cumulative += counts[i];
+      m.put(prefix + "_le_" + BOUNDS_MILLIS[i] + "ms", cumulative);
+    }
+  }
+
+  // Upper bound of the bucket holding the p-th fraction, -1 for slower
+  // than the last bound
+  private static long percentile(long[] counts, long n, double p) {
+    if (n == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * p);
+    long seen = 0;
+    for (int i = 0; i < BOUNDS_MILLIS.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return BOUNDS_MILLIS[i];
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,324 @@
+package speedscale.lib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+// In-process cache for upstream responses. Entries are fresh for ttlMillis,
+// then served stale for up to staleMillis more while one background load
+// replaces them. Fresh entries are also refreshed early at random, more
+// likely the closer they are to expiry and the slower they were to load
+// (XFetch), so keys cached together do not all expire together. When a
+// load fails, e.g. while the upstream's circuit is open, the last value
+// stored for the key is served however old it is. Least recently used
+// entries are evicted past maxSize. With a DiskCache every stored entry
+// is written through to it, and a key missing in memory is looked up there
+// before loading, so entries outlive the process.
+public class ResponseCache<K, V> {
+
+  private static final Logger log = LogManager.getLogger();
+
+  public interface Loader<V> {
+    V load() throws Exception;
+  }
+
+  // How values are kept in a DiskCache
+  public interface Codec<V> {
+    byte[] encode(V value);
+
+    V decode(ByteBuffer bytes) throws IOException;
+  }
+
+  private static final ExecutorService refresher = new ThreadPoolExecutor(
+      1, 4, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(256), r -> {
+        Thread t = new Thread(r, "response-cache-refresh");
+        t.setDaemon(true);
+        return t;
+      });
+
+  private static final class Entry<V> {
+    final V value;
+    final long expiresAt;
+    final long staleUntil;
+    // How long the load took, scales the early refresh window
+    final long loadMillis;
+    final AtomicBoolean refreshing = new AtomicBoolean();
+
+    Entry(V value, long expiresAt, long staleUntil, long loadMillis) {
+      this.value = value;
+      this.expiresAt = expiresAt;
+      this.staleUntil = staleUntil;
+      this.loadMillis = loadMillis;
+    }
+  }
+
+  private final String name;
+  private final long ttlMillis;
+  private final long staleMillis;
+  private final Predicate<V> cacheable;
+  private final LinkedHashMap<K, Entry<V>> entries;
+  // null when caching in memory only
+  private final DiskCache disk;
+  private final Codec<V> codec;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder staleHits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder refreshes = new LongAdder();
+  private final LongAdder earlyRefreshes = new LongAdder();
+  private final LongAdder refreshFailures = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder errorFallbacks = new LongAdder();
+  private final LongAdder diskHits = new LongAdder();
+
+  // Only values that pass cacheable are stored, the rest are returned once
+  public ResponseCache(String name, int maxSize, long ttlMillis, long staleMillis, Predicate<V> cacheable) {
+    this(name, maxSize, ttlMillis, staleMillis, cacheable, null, null);
+  }
+
+  // Keys are stored on disk as name and key.toString(), disk may be null
+  public ResponseCache(String name, int maxSize, long ttlMillis, long staleMillis, Predicate<V> cacheable,
+      DiskCache disk, Codec<V> codec) {
+    this.name = name;
+    this.disk = disk;
+    this.codec = codec;
+    this.ttlMillis = ttlMillis;
+    this.staleMillis = staleMillis;
+    this.cacheable = cacheable;
+    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+        if (size() > maxSize) {
+          evictions.increment();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  public V get(K key, Loader<V> loader) throws Exception {
+    if (ttlMillis <= 0) {
+      return loader.load();
+    }
+    Entry<V> entry = lookup(key, e -> refresh(key, e, loader));
+    if (entry != null) {
+      return entry.value;
+    }
+    try {
+      return load(key, loader);
+    } catch (Exception e) {
+      V last = last(key);
+      if (last == null) {
+        throw e;
+      }
+      errorFallbacks.increment();
+      return last;
+    }
+  }
+
+  // Same as get, for loaders that do not block. Refreshes run on whatever
+  // thread completes the loader's future.
+  public CompletableFuture<V> getAsync(K key, Supplier<CompletableFuture<V>> loader) {
+    if (ttlMillis <= 0) {
+      return loader.get();
+    }
+    Entry<V> entry = lookup(key, e -> {
+      refreshes.increment();
+      loadAsync(key, loader).whenComplete((v, err) -> {
+        if (err != null) {
+          refreshFailures.increment();
+          log.warn("Refreshing " + name + " " + key + " failed: " + err);
+        }
+        e.refreshing.set(false);
+      });
+    });
+    if (entry != null) {
+      return CompletableFuture.completedFuture(entry.value);
+    }
+    return loadAsync(key, loader).handle((value, e) -> {
+      if (e == null) {
+        return value;
+      }
+      V last = last(key);
+      if (last == null) {
+        throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+      }
+      errorFallbacks.increment();
+      return last;
+    });
+  }
+
+  // The value get would serve, starting the same refresh when it is stale,
+  // but null on a miss instead of loading it
+  public V getIfPresent(K key, Loader<V> loader) {
+    if (ttlMillis <= 0) {
+      return null;
+    }
+    Entry<V> entry = lookup(key, e -> refresh(key, e, loader));
+    return entry == null ? null : entry.value;
+  }
+
+  // Stores a value loaded some other way, e.g. one item of a batch fetch
+  public void put(K key, V value) {
+    if (ttlMillis <= 0) {
+      return;
+    }
+    store(key, value, System.currentTimeMillis());
+  }
+
+  public void invalidateAll() {
+    synchronized (entries) {
+      entries.clear();
+    }
+    if (disk != null) {
+      disk.removeAll(name + " ");
+    }
+  }
+
+  public Map<String, Long> stats() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    synchronized (entries) {
+      m.put("size", (long) entries.size());
+    }
+    m.put("hits", hits.sum());
+    m.put("stale_hits", staleHits.sum());
+    m.put("misses", misses.sum());
+    m.put("refreshes", refreshes.sum());
+    m.put("early_refreshes", earlyRefreshes.sum());
+    m.put("refresh_failures", refreshFailures.sum());
+    m.put("evictions", evictions.sum());
+    m.put("error_fallbacks", errorFallbacks.sum());
+    m.put("disk_hits", diskHits.sum());
+    return m;
+  }
+
+  // The entry if it can be served, starting at most one refresh for it
+  // when it is stale or picked for early expiry. Null on a miss.
+  private Entry<V> lookup(K key, Consumer<Entry<V>> refresh) {
+    Entry<V> entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      entry = fromDisk(key, false);
+    }
+    long now = System.currentTimeMillis();
+    if (entry != null) {
+      if (now < entry.expiresAt) {
+        hits.increment();
+        double gap = -entry.loadMillis * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        if (now + gap >= entry.expiresAt && entry.refreshing.compareAndSet(false, true)) {
+          earlyRefreshes.increment();
+          refresh.accept(entry);
+        }
+        return entry;
+      }
+      if (now < entry.staleUntil) {
+        staleHits.increment();
+        if (entry.refreshing.compareAndSet(false, true)) {
+          refresh.accept(entry);
+        }
+        return entry;
+      }
+    }
+    misses.increment();
+    return null;
+  }
+
+  // Whatever is stored for key, expired or not
+  private V last(K key) {
+    Entry<V> entry;
+    synchronized (entries) {
+      entry = entries.get(key);
+    }
+    if (entry == null) {
+      entry = fromDisk(key, true);
+    }
+    return entry == null ? null : entry.value;
+  }
+
+  // The entry for key on disk, put back in memory unless it is past
+  // staleUntil and any age was not asked for
+  private Entry<V> fromDisk(K key, boolean anyAge) {
+    if (disk == null) {
+      return null;
+    }
+    DiskCache.Hit hit = disk.get(name + " " + key);
+    if (hit == null || (!anyAge && hit.staleUntil <= System.currentTimeMillis())) {
+      return null;
+    }
+    Entry<V> entry;
+    try {
+      entry = new Entry<V>(codec.decode(hit.value), hit.expiresAt, hit.staleUntil, 0);
+    } catch (IOException | RuntimeException e) {
+      log.warn("Reading " + name + " " + key + " from disk failed: " + e);
+      return null;
+    }
+    diskHits.increment();
+    synchronized (entries) {
+      Entry<V> loaded = entries.putIfAbsent(key, entry);
+      return loaded != null ? loaded : entry;
+    }
+  }
+
+  private V load(K key, Loader<V> loader) throws Exception {
+    long start = System.currentTimeMillis();
+    return store(key, loader.load(), start);
+  }
+
+  private CompletableFuture<V> loadAsync(K key, Supplier<CompletableFuture<V>> loader) {
+    long start = System.currentTimeMillis();
+    return loader.get().thenApply(value -> store(key, value, start));
+  }
+
+  private V store(K key, V value, long start) {
+    long now = System.currentTimeMillis();
+    if (value != null && cacheable.test(value)) {
+      Entry<V> entry = new Entry<V>(value, now + ttlMillis, now + ttlMillis + staleMillis, now - start);
+      synchronized (entries) {
+        entries.put(key, entry);
+      }
+      if (disk != null) {
+        disk.put(name + " " + key, codec.encode(value), entry.expiresAt, entry.staleUntil);
+      }
+    }
+    return value;
+  }
+
+  // Runs the load in the background, the caller never waits for it
+  private void refresh(K key, Entry<V> entry, Loader<V> loader) {
+    try {
+      refresher.execute(() -> {
+        try {
+          refreshes.increment();
+          load(key, loader);
+        } catch (Exception e) {
+          // Keep serving what we have until it is past staleUntil
+          refreshFailures.increment();
+          log.warn("Refreshing " + name + " " + key + " failed: " + e);
+        } finally {
+          entry.refreshing.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      entry.refreshing.set(false);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package speedscale.lib;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Collapses concurrent calls for the same key into one. The first caller
+// runs the call, everyone who asks for the key while it is in flight waits
+// for and shares its result or exception. Nothing is kept afterwards, that
+// is ResponseCache's job.
+public class SingleFlight<K, V> {
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight =
+      new ConcurrentHashMap<K, CompletableFuture<V>>();
+
+  private final LongAdder calls = new LongAdder();
+  private final LongAdder collapsed = new LongAdder();
+
+  public V execute(K key, Callable<V> call) throws Exception {
+    CompletableFuture<V> mine = new CompletableFuture<V>();
+    CompletableFuture<V> theirs = inFlight.putIfAbsent(key, mine);
+    if (theirs != null) {
+      collapsed.increment();
+      try {
+        return theirs.get();
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof Exception) {
+          throw (Exception) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    calls.increment();
+    try {
+      V value = call.call();
+      mine.complete(value);
+      return value;
+    } catch (Exception | Error e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  // Same as execute, for calls that do not block. Sync and async callers
+  // for one key share the same in-flight call.
+  public CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+    CompletableFuture<V> mine = new CompletableFuture<V>();
+    CompletableFuture<V> theirs = inFlight.putIfAbsent(key, mine);
+    if (theirs != null) {
+      collapsed.increment();
+      return theirs;
+    }
+
+    calls.increment();
+    CompletableFuture<V> started;
+    try {
+      started = call.get();
+    } catch (RuntimeException e) {
+      started = CompletableFuture.failedFuture(e);
+    }
+    started.whenComplete((value, e) -> {
+      inFlight.remove(key, mine);
+      if (e != null) {
+        mine.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+      } else {
+        mine.complete(value);
+      }
+    });
+    return mine;
+  }
+
+  public Map<String, Long> stats() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    m.put("calls", calls.sum());
+    m.put("collapsed", collapsed.sum());
+    m.put("in_flight", (long) inFlight.size());
+    return m;
+  }
+}
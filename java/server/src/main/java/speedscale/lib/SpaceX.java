@@ -1,29 +1,201 @@
 package speedscale.lib;
 
-import java.net.URI;
-import java.net.http.HttpClient;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.StringJoiner;
+import java.util.concurrent.CompletableFuture;
 
 public class SpaceX {
 
-    private static final String baseURL = "https://api.spacexdata.com";
-
-    private static final HttpClient httpTransport = HttpClient.newHttpClient();
+    private static final Upstream upstream = new Upstream("spacex", "https://api.spacexdata.com");
+    private static final ObjectMapper mapper = new ObjectMapper();
     private static final Random r = new Random();
 
+    // Launch data changes within minutes, ship data almost never. Tune with
+    // -Dspeedscale.spacex.* system properties, a TTL of 0 disables caching.
+    // Responses are kept as status and body rather than the HttpResponse, so
+    // they can be written to the disk cache, and ships found by a batch
+    // query can be cached under their own path too.
+    private static final ResponseCache<String, Body> launchResponses = new ResponseCache<>(
+            "spacex launches",
+            Integer.getInteger("speedscale.spacex.cacheSize", 1000),
+            Long.getLong("speedscale.spacex.launchesTtlMillis", 60000),
+            Long.getLong("speedscale.spacex.staleMillis", 300000),
+            body -> body.status == 200,
+            DiskCache.configured(), Body.codec);
+    private static final ResponseCache<String, Body> shipResponses = new ResponseCache<>(
+            "spacex ships",
+            Integer.getInteger("speedscale.spacex.cacheSize", 1000),
+            Long.getLong("speedscale.spacex.shipTtlMillis", 600000),
+            Long.getLong("speedscale.spacex.staleMillis", 300000),
+            body -> body.status == 200,
+            DiskCache.configured(), Body.codec);
+
+    // Requests for a URL that is already being fetched wait for that fetch
+    private static final SingleFlight<String, HttpResponse<String>> flights = new SingleFlight<>();
+
     public static String launches() throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseURL + "/v5/launches/latest")).GET().build();
-        HttpResponse<String> resp = httpTransport.send(req, BodyHandlers.ofString());
-        return resp.body();
+        String path = "/v5/launches/latest";
+        return launchResponses.get(path, () -> Body.of(get(path))).json;
     }
 
     public static String ship(String id) throws Exception {
-        HttpRequest req = HttpRequest.newBuilder(URI.create(baseURL + "/v4/ships/" + id)).GET().build();
-        HttpResponse<String> resp = httpTransport.send(req, BodyHandlers.ofString());
-        return resp.body();
+        String path = "/v4/ships/" + id;
+        return shipResponses.get(path, () -> Body.of(get(path))).json;
+    }
+
+    // A JSON array of the ships in the order asked for, null where the
+    // upstream has no such ship. Cached ships are served from the cache and
+    // the rest are fetched with one POST /v4/ships/query, then cached under
+    // their own path for ship(id) as well.
+    public static String ships(List<String> ids) throws Exception {
+        Map<String, String> found = new HashMap<String, String>();
+        List<String> misses = new ArrayList<String>();
+        for (String id : new LinkedHashSet<String>(ids)) {
+            String path = "/v4/ships/" + id;
+            Body cached = shipResponses.getIfPresent(path, () -> Body.of(get(path)));
+            if (cached != null) {
+                found.put(id, cached.json);
+            } else {
+                misses.add(id);
+            }
+        }
+        if (!misses.isEmpty()) {
+            found.putAll(queryShips(misses));
+        }
+        StringJoiner out = new StringJoiner(",", "[", "]");
+        for (String id : ids) {
+            out.add(found.getOrDefault(id, "null"));
+        }
+        return out.toString();
+    }
+
+    // Non-blocking variants, no thread waits on the upstream
+    public static CompletableFuture<String> launchesAsync() {
+        String path = "/v5/launches/latest";
+        return launchResponses.getAsync(path, () -> getAsync(path).thenApply(Body::of)).thenApply(body -> body.json);
+    }
+
+    public static CompletableFuture<String> shipAsync(String id) {
+        String path = "/v4/ships/" + id;
+        return shipResponses.getAsync(path, () -> getAsync(path).thenApply(Body::of)).thenApply(body -> body.json);
+    }
+
+    // Opens the upstream body for the caller to stream out, nothing is
+    // buffered or cached. ifNoneMatch may be null.
+    public static HttpResponse<InputStream> streamLaunches(String ifNoneMatch) throws Exception {
+        return stream("/v5/launches/latest", ifNoneMatch);
+    }
+
+    public static HttpResponse<InputStream> streamShip(String id, String ifNoneMatch) throws Exception {
+        return stream("/v4/ships/" + id, ifNoneMatch);
+    }
+
+    public static Map<String, Long> cacheStats() {
+        Map<String, Long> m = launchResponses.stats();
+        shipResponses.stats().forEach((k, v) -> m.merge(k, v, Long::sum));
+        return m;
+    }
+
+    public static Map<String, Long> coalescingStats() {
+        return flights.stats();
+    }
+
+    public static Map<String, Long> upstreamStats() {
+        return upstream.stats();
+    }
+
+    // GETs are safe to hedge with -Dspeedscale.spacex.hedge.enabled=true.
+    // Streamed bodies are not hedged, a losing stream would need closing.
+    private static HttpResponse<String> get(String path) throws Exception {
+        HttpRequest req = upstream.request(path).GET().build();
+        return flights.execute(path, () -> upstream.sendHedged(req, BodyHandlers.ofString()));
+    }
+
+    // Identical queries share one request, in whatever order the ids came
+    private static Map<String, String> queryShips(List<String> ids) throws Exception {
+        ObjectNode query = mapper.createObjectNode();
+        ArrayNode in = query.putObject("query").putObject("_id").putArray("$in");
+        ids.forEach(in::add);
+        query.putObject("options").put("pagination", false);
+        HttpRequest req = upstream.request("/v4/ships/query")
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(query)))
+                .build();
+        List<String> key = new ArrayList<String>(ids);
+        Collections.sort(key);
+        HttpResponse<String> resp = flights.execute("POST /v4/ships/query " + key,
+                () -> upstream.send(req, BodyHandlers.ofString()));
+        if (resp.statusCode() != 200) {
+            throw new IOException("SpaceX ships query returned " + resp.statusCode());
+        }
+
+        Map<String, String> found = new HashMap<String, String>();
+        for (JsonNode doc : mapper.readTree(resp.body()).path("docs")) {
+            String id = doc.path("id").asText();
+            String json = mapper.writeValueAsString(doc);
+            found.put(id, json);
+            shipResponses.put("/v4/ships/" + id, new Body(200, json));
+        }
+        return found;
+    }
+
+    private static HttpResponse<InputStream> stream(String path, String ifNoneMatch) throws Exception {
+        HttpRequest.Builder req = upstream.request(path).GET();
+        if (ifNoneMatch != null) {
+            req.header("If-None-Match", ifNoneMatch);
+        }
+        return upstream.send(req.build(), BodyHandlers.ofInputStream());
+    }
+
+    private static CompletableFuture<HttpResponse<String>> getAsync(String path) {
+        HttpRequest req = upstream.request(path).GET().build();
+        return flights.executeAsync(path, () -> upstream.sendHedgedAsync(req, BodyHandlers.ofString()));
+    }
+
+    private static final class Body {
+        // Status, then the UTF-8 body
+        static final ResponseCache.Codec<Body> codec = new ResponseCache.Codec<Body>() {
+            @Override
+            public byte[] encode(Body body) {
+                byte[] json = body.json.getBytes(StandardCharsets.UTF_8);
+                return ByteBuffer.allocate(4 + json.length).putInt(body.status).put(json).array();
+            }
+
+            @Override
+            public Body decode(ByteBuffer bytes) {
+                int status = bytes.getInt();
+                return new Body(status, StandardCharsets.UTF_8.decode(bytes).toString());
+            }
+        };
+
+        final int status;
+        final String json;
+
+        Body(int status, String json) {
+            this.status = status;
+            this.json = json;
+        }
+
+        static Body of(HttpResponse<String> resp) {
+            return new Body(resp.statusCode(), resp.body());
+        }
     }
 
     public static String randomShip() {
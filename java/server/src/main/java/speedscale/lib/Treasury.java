@@ -1,33 +1,108 @@
 package speedscale.lib;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import java.net.URI;
-import java.net.http.HttpClient;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.time.LocalDate;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import speedscale.model.InterestRateStats;
 import speedscale.model.TreasuryResponse;
 
 public class Treasury {
 
-  private static final String baseURL =
-      "https://api.fiscaldata.treasury.gov/services/api/fiscal_service";
+  private static final Upstream upstream = new Upstream("treasury",
+      "https://api.fiscaldata.treasury.gov/services/api/fiscal_service");
 
-  private static final HttpClient httpTransport = HttpClient.newHttpClient();
   private static final SimpleDateFormat dateFormat =
       new SimpleDateFormat("yyyy-MM-dd");
   private static ObjectMapper objectMapper = new ObjectMapper();
 
+  // Concurrent requests for the same path share one fetch and parse
+  private static final SingleFlight<String, TreasuryResponse> flights =
+      new SingleFlight<>();
+  private static final SingleFlight<String, InterestRateStats> statsFlights =
+      new SingleFlight<>();
+
   public static TreasuryResponse interestRates(Date d) throws Exception {
-    String date = dateFormat.format(d);
-    String url =
-        baseURL +
-        "/v2/accounting/od/avg_interest_rates?filter=record_date:gte:" + date;
-    HttpRequest req = HttpRequest.newBuilder(URI.create(url)).GET().build();
+    String path = interestRatesPath(d);
+    return flights.execute(path, () -> {
+      HttpRequest req = upstream.request(path).GET().build();
+      HttpResponse<String> resp =
+          upstream.send(req, BodyHandlers.ofString());
+      return parse(resp.body());
+    });
+  }
+
+  // Aggregates computed while the body streams in, without building a
+  // TreasuryResponse
+  public static InterestRateStats interestRateStats(Date d) throws Exception {
+    String path = interestRatesPath(d);
+    return statsFlights.execute(path, () -> {
+      HttpRequest req = upstream.request(path).GET().build();
+      HttpResponse<InputStream> resp =
+          upstream.send(req, BodyHandlers.ofInputStream());
+      return InterestRateReducer.reduce(resp.body());
+    });
+  }
+
+  // One page of the records on or after since, oldest first, for callers
+  // that keep their own copy. Each call is a fetch, nothing is shared.
+  public static TreasuryResponse interestRatesPage(LocalDate since, int number, int size) throws Exception {
+    String path =
+        "/v2/accounting/od/avg_interest_rates?filter=record_date:gte:" + since +
+        "&sort=record_date,src_line_nbr" +
+        "&page%5Bnumber%5D=" + number + "&page%5Bsize%5D=" + size;
+    HttpRequest req = upstream.request(path).GET().build();
     HttpResponse<String> resp =
-        httpTransport.send(req, BodyHandlers.ofString());
-    return objectMapper.readValue(resp.body(), TreasuryResponse.class);
+        upstream.send(req, BodyHandlers.ofString());
+    if (resp.statusCode() != 200) {
+      throw new IOException("Treasury returned " + resp.statusCode() + " for " + path);
+    }
+    return parse(resp.body());
+  }
+
+  public static Map<String, Long> coalescingStats() {
+    Map<String, Long> m = flights.stats();
+    statsFlights.stats().forEach((k, v) -> m.merge(k, v, Long::sum));
+    return m;
+  }
+
+  public static Map<String, Long> upstreamStats() {
+    return upstream.stats();
+  }
+
+  // Non-blocking variant, parsing runs on the HttpClient's executor
+  public static CompletableFuture<TreasuryResponse> interestRatesAsync(Date d) {
+    String path = interestRatesPath(d);
+    return flights.executeAsync(path, () -> {
+      HttpRequest req = upstream.request(path).GET().build();
+      return upstream.sendAsync(req, BodyHandlers.ofString())
+          .thenApply(resp -> {
+            try {
+              return parse(resp.body());
+            } catch (Exception e) {
+              throw new CompletionException(e);
+            }
+          });
+    });
+  }
+
+  private static String interestRatesPath(Date d) {
+    String date;
+    synchronized (dateFormat) {
+      date = dateFormat.format(d);
+    }
+    return "/v2/accounting/od/avg_interest_rates?filter=record_date:gte:" + date;
+  }
+
+  public static TreasuryResponse parse(String body) throws Exception {
+    return objectMapper.readValue(body, TreasuryResponse.class);
   }
 }
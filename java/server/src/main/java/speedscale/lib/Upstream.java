@@ -0,0 +1,333 @@
+package speedscale.lib;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// One upstream API and the HttpClient that talks to it. Every call goes
+// through a bulkhead of at most maxConcurrency requests in flight; the
+// rest queue, and give up with RejectedException after queueTimeoutMillis
+// so a slow upstream cannot hold every request thread. The client prefers
+// HTTP/2, which multiplexes the requests over one connection where the
+// upstream supports it and falls back to HTTP/1.1 where it does not.
+// In front of the bulkhead a CircuitBreaker refuses calls outright with
+// CircuitOpenException while the upstream is failing or slow; connection
+// errors, 5xx responses and bulkhead rejections count as failures.
+// Tune each upstream with -Dspeedscale.<name>.* system properties:
+// baseUrl, maxConcurrency, queueTimeoutMillis, connectTimeoutMillis,
+// requestTimeoutMillis (default speedscale.http.timeoutMillis), http2,
+// and breaker.windowSize, breaker.minCalls, breaker.failureRatePercent,
+// breaker.slowCallMillis, breaker.slowCallRatePercent, breaker.openMillis
+// and breaker.halfOpenProbes.
+// Callers may hedge idempotent requests with sendHedged: with
+// hedge.enabled a request that has not answered within the
+// hedge.percentile (95) latency of recent ones, but at least
+// hedge.minDelayMillis, is sent a second time and the first response
+// wins. Hedges are limited to hedge.budgetPercent (5) of requests.
+public class Upstream {
+
+  public static class RejectedException extends IOException {
+    RejectedException(String message) {
+      super(message);
+    }
+  }
+
+  // Thrown on every call while the circuit is open, so no stack trace
+  public static class CircuitOpenException extends IOException {
+    CircuitOpenException(String message) {
+      super(message);
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+      return this;
+    }
+  }
+
+  private final String name;
+  private final String baseUrl;
+  private final HttpClient client;
+  private final Duration requestTimeout;
+  private final int maxConcurrency;
+  private final long queueTimeoutMillis;
+  private final CircuitBreaker breaker;
+  // null unless hedging is enabled
+  private final HedgePolicy hedge;
+
+  private final AtomicInteger permits;
+  private final ConcurrentLinkedQueue<CompletableFuture<Void>> waiters =
+      new ConcurrentLinkedQueue<CompletableFuture<Void>>();
+  private final AtomicInteger queued = new AtomicInteger();
+
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder http2 = new LongAdder();
+  private final LongAdder http1 = new LongAdder();
+  private final LatencyHistogram queueWait = new LatencyHistogram();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  public Upstream(String name, String defaultBaseUrl) {
+    String p = "speedscale." + name + ".";
+    this.name = name;
+    this.baseUrl = System.getProperty(p + "baseUrl", defaultBaseUrl);
+    this.maxConcurrency = Integer.getInteger(p + "maxConcurrency", 64);
+    this.queueTimeoutMillis = Long.getLong(p + "queueTimeoutMillis", 1000);
+    this.requestTimeout = Duration.ofMillis(Long.getLong(p + "requestTimeoutMillis",
+        Long.getLong("speedscale.http.timeoutMillis", 30000)));
+    this.permits = new AtomicInteger(maxConcurrency);
+    this.client = HttpClients.newBuilder()
+        .connectTimeout(Duration.ofMillis(Long.getLong(p + "connectTimeoutMillis", 5000)))
+        .version(Boolean.parseBoolean(System.getProperty(p + "http2", "true"))
+            ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+        .build();
+    this.breaker = new CircuitBreaker(name,
+        Integer.getInteger(p + "breaker.windowSize", 50),
+        Integer.getInteger(p + "breaker.minCalls", 20),
+        Integer.getInteger(p + "breaker.failureRatePercent", 50),
+        Long.getLong(p + "breaker.slowCallMillis", 5000),
+        Integer.getInteger(p + "breaker.slowCallRatePercent", 10),
+        Long.getLong(p + "breaker.openMillis", 10000),
+        Integer.getInteger(p + "breaker.halfOpenProbes", 3));
+    this.hedge = Boolean.getBoolean(p + "hedge.enabled")
+        ? new HedgePolicy(
+            Double.parseDouble(System.getProperty(p + "hedge.percentile", "95")),
+            Long.getLong(p + "hedge.minDelayMillis", 10),
+            Double.parseDouble(System.getProperty(p + "hedge.budgetPercent", "5")))
+        : null;
+  }
+
+  // A request to path, which may carry a query string, with this
+  // upstream's request timeout
+  public HttpRequest.Builder request(String path) {
+    return HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(requestTimeout);
+  }
+
+  // For streamed bodies the slot is released once the headers are in,
+  // reading the body is up to the caller
+  public <T> HttpResponse<T> send(HttpRequest req, HttpResponse.BodyHandler<T> handler)
+      throws IOException, InterruptedException {
+    CircuitBreaker.Permit call = breaker.allow();
+    if (call == null) {
+      throw circuitOpen();
+    }
+    long queuedAt = System.nanoTime();
+    CompletableFuture<Void> permit = acquire();
+    try {
+      permit.get();
+    } catch (ExecutionException e) {
+      breaker.record(call, false, 0);
+      throw rejected();
+    } catch (InterruptedException e) {
+      // Unless a release handed us the slot in the meantime
+      if (!permit.completeExceptionally(e) && !permit.isCompletedExceptionally()) {
+        release();
+      }
+      breaker.record(call, false, 0);
+      throw e;
+    }
+
+    long start = System.nanoTime();
+    queueWait.record(start - queuedAt);
+    requests.increment();
+    HttpResponse<T> resp = null;
+    try {
+      resp = client.send(req, handler);
+      return completed(resp);
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      failures.increment();
+      throw e;
+    } finally {
+      long nanos = System.nanoTime() - start;
+      latency.record(nanos);
+      release();
+      breaker.record(call, resp != null && resp.statusCode() < 500, nanos);
+    }
+  }
+
+  // Non-blocking send, a queued request holds no thread
+  public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest req, HttpResponse.BodyHandler<T> handler) {
+    CircuitBreaker.Permit call = breaker.allow();
+    if (call == null) {
+      return CompletableFuture.failedFuture(circuitOpen());
+    }
+    long queuedAt = System.nanoTime();
+    CompletableFuture<HttpResponse<T>> result = new CompletableFuture<HttpResponse<T>>();
+    acquire().whenComplete((v, e) -> {
+      if (e != null) {
+        breaker.record(call, false, 0);
+        result.completeExceptionally(rejected());
+        return;
+      }
+      long start = System.nanoTime();
+      queueWait.record(start - queuedAt);
+      requests.increment();
+      CompletableFuture<HttpResponse<T>> sent;
+      try {
+        sent = client.sendAsync(req, handler);
+      } catch (RuntimeException ex) {
+        sent = CompletableFuture.failedFuture(ex);
+      }
+      sent.whenComplete((resp, err) -> {
+        long nanos = System.nanoTime() - start;
+        latency.record(nanos);
+        release();
+        breaker.record(call, resp != null && resp.statusCode() < 500, nanos);
+        if (err != null) {
+          failures.increment();
+          result.completeExceptionally(err);
+        } else {
+          result.complete(completed(resp));
+        }
+      });
+    });
+    return result;
+  }
+
+  // Only for requests that are safe to send twice, and whose bodies need
+  // no closing when they lose
+  public <T> HttpResponse<T> sendHedged(HttpRequest req, HttpResponse.BodyHandler<T> handler)
+      throws IOException, InterruptedException {
+    if (hedge == null) {
+      return send(req, handler);
+    }
+    try {
+      return sendHedgedAsync(req, handler).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  // The losing attempt is left to finish, it still holds its bulkhead slot
+  // and counts towards the breaker like any other call
+  public <T> CompletableFuture<HttpResponse<T>> sendHedgedAsync(HttpRequest req,
+      HttpResponse.BodyHandler<T> handler) {
+    if (hedge == null) {
+      return sendAsync(req, handler);
+    }
+    hedge.onRequest();
+    long delay = hedge.delayNanos();
+    CompletableFuture<HttpResponse<T>> result = new CompletableFuture<HttpResponse<T>>();
+    AtomicInteger pending = new AtomicInteger(1);
+    attempt(req, handler, result, pending, false);
+    if (delay >= 0) {
+      CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS).execute(() -> {
+        if (!result.isDone() && hedge.tryHedge()) {
+          pending.incrementAndGet();
+          attempt(req, handler, result, pending, true);
+        }
+      });
+    }
+    return result;
+  }
+
+  public Map<String, Long> stats() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    m.put("max_concurrency", (long) maxConcurrency);
+    m.put("in_flight", (long) (maxConcurrency - permits.get()));
+    m.put("queued", (long) queued.get());
+    m.put("requests", requests.sum());
+    m.put("failures", failures.sum());
+    m.put("rejected", rejected.sum());
+    m.put("http2_responses", http2.sum());
+    m.put("http1_responses", http1.sum());
+    queueWait.stats("queue_wait", m);
+    latency.stats("latency", m);
+    m.putAll(breaker.stats());
+    if (hedge != null) {
+      m.putAll(hedge.stats());
+    }
+    return m;
+  }
+
+  // The first response completes result, an error only once no other
+  // attempt is left to answer
+  private <T> void attempt(HttpRequest req, HttpResponse.BodyHandler<T> handler,
+      CompletableFuture<HttpResponse<T>> result, AtomicInteger pending, boolean hedged) {
+    long start = System.nanoTime();
+    sendAsync(req, handler).whenComplete((resp, e) -> {
+      if (e == null) {
+        hedge.sample(System.nanoTime() - start);
+        if (result.complete(resp) && hedged) {
+          hedge.hedgeWon();
+        }
+      } else if (pending.decrementAndGet() == 0) {
+        result.completeExceptionally(e);
+      }
+    });
+  }
+
+  private <T> HttpResponse<T> completed(HttpResponse<T> resp) {
+    if (resp.version() == HttpClient.Version.HTTP_2) {
+      http2.increment();
+    } else {
+      http1.increment();
+    }
+    return resp;
+  }
+
+  private CircuitOpenException circuitOpen() {
+    return new CircuitOpenException(name + ": circuit open, not calling the upstream");
+  }
+
+  private RejectedException rejected() {
+    rejected.increment();
+    return new RejectedException(name + ": " + maxConcurrency + " requests in flight, gave up after waiting "
+        + queueTimeoutMillis + "ms");
+  }
+
+  // Completes once a slot is ours, or with a TimeoutException after
+  // queueTimeoutMillis. A release hands its slot straight to the oldest
+  // waiter that has not given up.
+  private CompletableFuture<Void> acquire() {
+    if (tryTake()) {
+      return CompletableFuture.completedFuture(null);
+    }
+    CompletableFuture<Void> waiter = new CompletableFuture<Void>();
+    queued.incrementAndGet();
+    waiter.whenComplete((v, e) -> queued.decrementAndGet());
+    waiters.add(waiter);
+    // A slot may have been released before we were in the queue
+    if (tryTake() && !waiter.complete(null)) {
+      release();
+    }
+    return waiter.orTimeout(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private boolean tryTake() {
+    int n;
+    while ((n = permits.get()) > 0) {
+      if (permits.compareAndSet(n, n - 1)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void release() {
+    CompletableFuture<Void> waiter;
+    while ((waiter = waiters.poll()) != null) {
+      if (waiter.complete(null)) {
+        return;
+      }
+    }
+    permits.incrementAndGet();
+  }
+}
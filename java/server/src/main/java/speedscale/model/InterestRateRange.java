@@ -0,0 +1,13 @@
+package speedscale.model;
+
+import java.time.LocalDate;
+
+// Max and min rate records between two record dates, both inclusive
+public class InterestRateRange {
+    public LocalDate from;
+    public LocalDate to;
+    public String security_type_desc;
+    public int count;
+    public TreasuryResponse.Record max;
+    public TreasuryResponse.Record min;
+}
@@ -0,0 +1,26 @@
+package speedscale.model;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Single-pass aggregates over the avg_interest_rates records
+public class InterestRateStats {
+    public long count;
+    public TreasuryResponse.Record max;
+    public TreasuryResponse.Record min;
+    public Map<String, Summary> by_security_type = new TreeMap<String, Summary>();
+
+    public static class Summary {
+        public long count;
+        public float min = Float.POSITIVE_INFINITY;
+        public float max = Float.NEGATIVE_INFINITY;
+        public double avg;
+
+        public void add(float rate) {
+            count++;
+            min = Math.min(min, rate);
+            max = Math.max(max, rate);
+            avg += (rate - avg) / count;
+        }
+    }
+}
@@ -4,10 +4,12 @@ import java.util.ArrayList;
 import java.util.Date;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class TreasuryResponse {
     public ArrayList<Record> data;
+    public Meta meta;
 
     @JsonIgnoreProperties(ignoreUnknown = true)
     public static class Record {
@@ -23,4 +25,12 @@ public class TreasuryResponse {
         public int record_calendar_month;
         public int record_calendar_day;
     }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Meta {
+        @JsonProperty("total-count")
+        public int total_count;
+        @JsonProperty("total-pages")
+        public int total_pages;
+    }
 }
@@ -0,0 +1,71 @@
+package speedscale.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PreDestroy;
+
+// Signs token batches with the public key algorithms on a pool of its own,
+// my.tokenBatch.threads (default one per core), so a big batch neither
+// runs on the common ForkJoinPool everything else shares nor takes more
+// threads than that. At most my.tokenBatch.queueSize parts of batches
+// wait for a thread, past that a batch is refused.
+@Component
+public class BatchSigner {
+
+    private final int threads;
+    private final ThreadPoolExecutor pool;
+
+    public BatchSigner(
+            @Value("${my.tokenBatch.threads:0}") int threads,
+            @Value("${my.tokenBatch.queueSize:64}") int queueSize) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        this.pool = new ThreadPoolExecutor(this.threads, this.threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), r -> {
+                Thread t = new Thread(r, "token-signer");
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    @PreDestroy
+    void stop() {
+        pool.shutdownNow();
+    }
+
+    // f over items, in order, split across up to threads parts. Throws
+    // RejectedExecutionException when the queue is full.
+    @SuppressWarnings("unchecked")
+    public <T, R> List<R> map(List<T> items, Function<T, R> f) {
+        int parts = Math.min(threads, items.size());
+        Object[] out = new Object[items.size()];
+        List<CompletableFuture<Void>> futures = new ArrayList<CompletableFuture<Void>>(parts);
+        for (int p = 0; p < parts; p++) {
+            int first = p;
+            futures.add(CompletableFuture.runAsync(() -> {
+                for (int i = first; i < out.length; i += parts) {
+                    out[i] = f.apply(items.get(i));
+                }
+            }, pool));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return (List<R>) Arrays.asList(out);
+    }
+}
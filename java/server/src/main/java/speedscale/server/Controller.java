@@ -1,20 +1,48 @@
 package speedscale.server;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.Calendar;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import com.fasterxml.jackson.databind.util.RawValue;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import speedscale.lib.*;
+import speedscale.model.InterestRateRange;
+import speedscale.model.InterestRateStats;
 import speedscale.model.Login;
 import speedscale.model.TreasuryResponse;
 
@@ -22,35 +50,177 @@ import speedscale.model.TreasuryResponse;
 public class Controller {
 
   @Autowired TokenManager jwt;
+  @Autowired VerifiedTokenCache tokenCache;
+  @Autowired TokenRejections tokenRejections;
+  @Autowired TokenRevocations tokenRevocations;
+  @Autowired TreasurySync treasurySync;
+  @Autowired BatchSigner batchSigner;
+
+  @Value("${my.tokenBatch.maxSize:1000}")
+  int tokenBatchMaxSize;
+
+  @Value("${my.shipBatch.maxSize:100}")
+  int shipBatchMaxSize;
+
+  @Value("${my.revocation.adminSecret:}")
+  String revocationAdminSecret;
+
+  @Value("${my.async.timeoutMillis:10000}")
+  long asyncTimeoutMillis;
+
+  @Value("${my.dashboard.branchTimeoutMillis:2000}")
+  long dashboardBranchTimeoutMillis;
 
   static final Logger log = LogManager.getLogger();
 
+  // Upstream headers the streaming endpoints pass through as they are
+  static final List<String> PASSTHROUGH_HEADERS = List.of(
+      "Content-Type", "Content-Length", "Content-Encoding", "ETag", "Last-Modified", "Cache-Control");
+
   @GetMapping("/healthz")
-  public Map<String, String> health() {
+  public ResponseEntity<Map<String, String>> health() {
     Map<String, String> m = new HashMap<String, String>();
+
+    // Not ready to take traffic until the signing keys are loaded, and
+    // never if they cannot be
+    Throwable failure = jwt.keyLoadFailure();
+    if (failure != null) {
+      m.put("health", "failed");
+      m.put("error", "RSA key pair could not be loaded: " + failure);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(m);
+    }
+    if (!jwt.isReady()) {
+      m.put("health", "starting");
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(m);
+    }
     m.put("health", "ok");
+    return ResponseEntity.ok(m);
+  }
+
+  @GetMapping("/stats")
+  public Map<String, Map<String, Long>> stats() {
+    Map<String, Map<String, Long>> m = new LinkedHashMap<String, Map<String, Long>>();
+    m.put("token_cache", tokenCache.stats());
+    m.put("token_rejections", tokenRejections.stats());
+    m.put("token_revocations", tokenRevocations.stats());
+    m.put("spacex_cache", SpaceX.cacheStats());
+    m.put("spacex_coalescing", SpaceX.coalescingStats());
+    m.put("treasury_coalescing", Treasury.coalescingStats());
+    m.put("treasury_sync", treasurySync.stats());
+    m.put("spacex_upstream", SpaceX.upstreamStats());
+    m.put("treasury_upstream", Treasury.upstreamStats());
+    if (DiskCache.configured() != null) {
+      m.put("disk_cache", DiskCache.configured().stats());
+    }
     return m;
   }
 
   @PostMapping("/login")
   public Map<String, String> login(@RequestBody Login login) {
+    return token(login, jwt::generateHmacToken);
+  }
+
+  @PostMapping("/rsaToken")
+  public Map<String, String> rsaToken(@RequestBody Login login) {
+    return token(login, jwt::generateRsaToken);
+  }
+
+  @PostMapping("/ecToken")
+  public Map<String, String> ecToken(@RequestBody Login login) {
+    return token(login, jwt::generateEcToken);
+  }
+
+  @PostMapping("/edToken")
+  public Map<String, String> edToken(@RequestBody Login login) {
+    return token(login, jwt::generateEdToken);
+  }
+
+  // Tokens for many users in one round trip, in the same order as the
+  // request, for services that already hold a token. Responds 413 over
+  // my.tokenBatch.maxSize and 503 while BatchSigner is saturated.
+  @PostMapping("/tokens")
+  public ResponseEntity<List<Map<String, String>>> tokens(@RequestBody List<Login> logins,
+      @RequestParam(defaultValue = "HS256") String alg) {
+    Function<String, String> generator;
+    switch (alg) {
+      case "HS256":
+        generator = jwt::generateHmacToken;
+        break;
+      case "RS256":
+        generator = jwt::generateRsaToken;
+        break;
+      case "ES256":
+        generator = jwt::generateEcToken;
+        break;
+      case "EdDSA":
+        generator = jwt::generateEdToken;
+        break;
+      default:
+        return ResponseEntity.badRequest().build();
+    }
+    if (logins.size() > tokenBatchMaxSize) {
+      return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+    }
+
+    // An HMAC signature costs less than handing it to another thread, the
+    // public key algorithms are worth spreading across cores
+    if ("HS256".equals(alg)) {
+      return ResponseEntity.ok(logins.stream()
+          .map(login -> token(login, generator))
+          .collect(Collectors.toList()));
+    }
+    try {
+      return ResponseEntity.ok(batchSigner.map(logins, login -> token(login, generator)));
+    } catch (RejectedExecutionException e) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
+  }
+
+  // Revokes a token before its exp, given either the token or its jti.
+  // Anyone can get a token for any name, so besides a valid token the
+  // caller needs my.revocation.adminSecret in X-Admin-Secret. Without a
+  // secret configured nobody may call it.
+  @PostMapping("/admin/revoke")
+  public ResponseEntity<Map<String, String>> revoke(@RequestBody Map<String, String> body,
+      @RequestHeader(value = "X-Admin-Secret", required = false) String adminSecret) {
     Map<String, String> m = new HashMap<String, String>();
+    if (revocationAdminSecret.isEmpty() || adminSecret == null || !MessageDigest.isEqual(
+        revocationAdminSecret.getBytes(StandardCharsets.UTF_8), adminSecret.getBytes(StandardCharsets.UTF_8))) {
+      return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+    }
 
-    // Check the user auth
-    boolean valid = UserAuth.validate(login);
-    if (!valid) {
-      m.put("err", "invalid auth");
-      return m;
+    // Without the token we can't know its exp, keep it for the longest
+    // lifetime we issue
+    String id = body.get("jti");
+    long expiresAt = System.currentTimeMillis() + TokenManager.EXPIRATION_OFFSET;
+    if (body.get("token") != null) {
+      VerifiedToken token = jwt.verifyJwtToken(body.get("token"));
+      if (token == null || token.id == null) {
+        m.put("err", "token is not valid or has no jti");
+        return ResponseEntity.badRequest().body(m);
+      }
+      id = token.id;
+      if (token.expiresAt > 0) {
+        expiresAt = token.expiresAt;
+      }
+    }
+    if (id == null || id.isBlank()) {
+      m.put("err", "token or jti required");
+      return ResponseEntity.badRequest().body(m);
     }
 
-    m.put("access_token", jwt.generateHmacToken(login.getUsername()));
-    m.put("token_type", "Bearer");
-    m.put("expires_id", TokenManager.EXPIRATION_OFFSET + "");
-    return m;
+    try {
+      tokenRevocations.revoke(id, expiresAt);
+    } catch (IOException e) {
+      log.catching(e);
+      return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build();
+    }
+    m.put("jti", id);
+    m.put("revoked", "true");
+    return ResponseEntity.ok(m);
   }
 
-  @PostMapping("/rsaToken")
-  public Map<String, String> rsaToken(@RequestBody Login login) {
+  private Map<String, String> token(Login login, Function<String, String> generator) {
     Map<String, String> m = new HashMap<String, String>();
 
     // Check the user auth
@@ -60,7 +230,7 @@ public class Controller {
       return m;
     }
 
-    m.put("access_token", jwt.generateRsaToken(login.getUsername()));
+    m.put("access_token", generator.apply(login.getUsername()));
     m.put("token_type", "Bearer");
     m.put("expires_id", TokenManager.EXPIRATION_OFFSET + "");
     return m;
@@ -87,6 +257,28 @@ public class Controller {
     return m;
   }
 
+  // Several ships in one call, as a JSON array in the order asked for
+  @GetMapping("/spacex/ships")
+  public ResponseEntity<String> ships(@RequestParam List<String> ids) {
+    ids = ids.stream().map(String::trim).filter(id -> !id.isEmpty()).collect(Collectors.toList());
+    if (ids.isEmpty()) {
+      return ResponseEntity.badRequest().build();
+    }
+    if (ids.size() > shipBatchMaxSize) {
+      return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).build();
+    }
+    try {
+      return ResponseEntity.ok()
+          .header("Content-Type", "application/json")
+          .body(SpaceX.ships(ids));
+    } catch (Exception e) {
+      log.catching(e);
+    }
+    return ResponseEntity.status(HttpStatus.BAD_GATEWAY)
+        .header("Content-Type", "application/json")
+        .body("[]");
+  }
+
   @GetMapping("/spacex/ship/{id}")
   public ResponseEntity<String> ship(@PathVariable String id) {
     try {
@@ -101,28 +293,221 @@ public class Controller {
         .body("{}");
   }
 
+  // Streaming variants of the SpaceX endpoints. The upstream body is copied
+  // to the client a buffer at a time as it arrives, with the upstream status
+  // and caching headers, so memory per request does not grow with the
+  // payload. Not cached. An upstream that cannot be reached is a 502, an
+  // error writing the response once it is under way propagates.
+
+  @GetMapping("/stream/spacex/launches")
+  public void launchesStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    HttpResponse<InputStream> upstream;
+    try {
+      upstream = SpaceX.streamLaunches(request.getHeader("If-None-Match"));
+    } catch (Exception e) {
+      badGateway(e, response);
+      return;
+    }
+    passthrough(upstream, response);
+  }
+
+  @GetMapping("/stream/spacex/ship/{id}")
+  public void shipStream(@PathVariable String id, HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    HttpResponse<InputStream> upstream;
+    try {
+      upstream = SpaceX.streamShip(id, request.getHeader("If-None-Match"));
+    } catch (Exception e) {
+      badGateway(e, response);
+      return;
+    }
+    passthrough(upstream, response);
+  }
+
+  private static void passthrough(HttpResponse<InputStream> upstream, HttpServletResponse response)
+      throws IOException {
+    response.setStatus(upstream.statusCode());
+    for (String name : PASSTHROUGH_HEADERS) {
+      upstream.headers().firstValue(name).ifPresent(value -> response.setHeader(name, value));
+    }
+    try (InputStream body = upstream.body()) {
+      body.transferTo(response.getOutputStream());
+    }
+  }
+
+  private static void badGateway(Exception e, HttpServletResponse response) throws IOException {
+    log.catching(e);
+    response.setStatus(HttpStatus.BAD_GATEWAY.value());
+    response.setContentType("application/json");
+    response.getWriter().write("{}");
+  }
+
+  // Answered from the synced copy, straight from the upstream only until
+  // the first sync has finished
+
   @GetMapping("/treasury/max_interest")
   @ResponseBody
   public TreasuryResponse.Record interest() {
-    Calendar firstOfYear = Calendar.getInstance();
-    firstOfYear.set(Calendar.DAY_OF_MONTH, 1);
-    firstOfYear.set(Calendar.MONTH, Calendar.JANUARY);
+    try {
+      return interestRateStats().max;
+    } catch (Exception e) {
+      log.catching(e);
+    }
+    return null;
+  }
 
+  @GetMapping("/treasury/interest_stats")
+  @ResponseBody
+  public InterestRateStats interestStats() {
     try {
-      TreasuryResponse resp = Treasury.interestRates(firstOfYear.getTime());
-      TreasuryResponse.Record max = null;
-      for (TreasuryResponse.Record record : resp.data) {
-        if (max == null) {
-          max = record;
-        }
-        if (max.avg_interest_rate_amt < record.avg_interest_rate_amt) {
-          max = record;
-        }
-      }
-      return max;
+      return interestRateStats();
     } catch (Exception e) {
       log.catching(e);
     }
     return null;
   }
+
+  // Max and min rate over a record_date range of the synced history,
+  // optionally for one security_type_desc. Never calls the upstream.
+  @GetMapping("/treasury/interest_range")
+  public ResponseEntity<InterestRateRange> interestRange(
+      @RequestParam String from,
+      @RequestParam(required = false) String to,
+      @RequestParam(name = "security_type", required = false) String securityType) {
+    InterestRateIndex index = treasurySync.index();
+    if (index == null) {
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
+    LocalDate start;
+    LocalDate end;
+    try {
+      start = LocalDate.parse(from);
+      end = to == null ? LocalDate.now(ZoneOffset.UTC) : LocalDate.parse(to);
+    } catch (DateTimeParseException e) {
+      return ResponseEntity.badRequest().build();
+    }
+    return ResponseEntity.ok(index.query(start, end, securityType));
+  }
+
+  // Async variants of the proxy endpoints. The request thread is released
+  // while the upstream call is outstanding, and the response is a 504 if it
+  // takes longer than my.async.timeoutMillis.
+
+  @GetMapping("/async/spacex/launches")
+  public CompletableFuture<ResponseEntity<String>> launchesAsync() {
+    return json(SpaceX.launchesAsync());
+  }
+
+  @GetMapping("/async/spacex/ship/{id}")
+  public CompletableFuture<ResponseEntity<String>> shipAsync(@PathVariable String id) {
+    return json(SpaceX.shipAsync(id));
+  }
+
+  @GetMapping("/async/treasury/max_interest")
+  public CompletableFuture<ResponseEntity<TreasuryResponse.Record>> interestAsync() {
+    return maxInterestAsync()
+        .thenApply(ResponseEntity::ok)
+        .orTimeout(asyncTimeoutMillis, TimeUnit.MILLISECONDS)
+        .exceptionally(e -> {
+          if (e instanceof TimeoutException) {
+            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).build();
+          }
+          log.catching(e);
+          return ResponseEntity.ok(null);
+        });
+  }
+
+  // The latest launch, a random ship and this year's max interest in one
+  // call. The three upstream calls run at once, each with its own
+  // my.dashboard.branchTimeoutMillis deadline; a branch that misses it or
+  // fails is null and named in errors, the others are still returned.
+  @GetMapping("/dashboard")
+  public CompletableFuture<Map<String, Object>> dashboard() {
+    Map<String, String> errors = new ConcurrentHashMap<String, String>();
+    CompletableFuture<String> launches = branch("launches", SpaceX.launchesAsync(), errors);
+    CompletableFuture<TreasuryResponse.Record> interest = branch("max_interest", maxInterestAsync(), errors);
+    // randomShip sleeps a little, the other two are already in flight
+    CompletableFuture<String> ship = branch("ship", SpaceX.shipAsync(SpaceX.randomShip()), errors);
+
+    return CompletableFuture.allOf(launches, interest, ship).thenApply(v -> {
+      Map<String, Object> m = new LinkedHashMap<String, Object>();
+      m.put("launches", launches.join() == null ? null : new RawValue(launches.join()));
+      m.put("ship", ship.join() == null ? null : new RawValue(ship.join()));
+      m.put("max_interest", interest.join());
+      m.put("errors", new TreeMap<String, String>(errors));
+      return m;
+    });
+  }
+
+  private <T> CompletableFuture<T> branch(String name, CompletableFuture<T> call, Map<String, String> errors) {
+    return call
+        .orTimeout(dashboardBranchTimeoutMillis, TimeUnit.MILLISECONDS)
+        .exceptionally(e -> {
+          Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+          if (cause instanceof TimeoutException) {
+            errors.put(name, "timeout");
+          } else if (cause instanceof Upstream.CircuitOpenException) {
+            errors.put(name, "circuit_open");
+          } else {
+            log.catching(cause);
+            errors.put(name, "failed");
+          }
+          return null;
+        });
+  }
+
+  private CompletableFuture<TreasuryResponse.Record> maxInterestAsync() {
+    InterestRateStats synced = treasurySync.current();
+    if (synced != null) {
+      return CompletableFuture.completedFuture(synced.max);
+    }
+    return Treasury.interestRatesAsync(firstOfYear()).thenApply(Controller::maxInterest);
+  }
+
+  private CompletableFuture<ResponseEntity<String>> json(CompletableFuture<String> body) {
+    return body
+        .orTimeout(asyncTimeoutMillis, TimeUnit.MILLISECONDS)
+        .handle((b, e) -> {
+          if (e instanceof TimeoutException) {
+            return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .body("{}");
+          }
+          if (e != null) {
+            log.catching(e);
+            b = "{}";
+          }
+          return ResponseEntity.ok()
+              .header("Content-Type", "application/json")
+              .body(b);
+        });
+  }
+
+  private InterestRateStats interestRateStats() throws Exception {
+    InterestRateStats synced = treasurySync.current();
+    if (synced != null) {
+      return synced;
+    }
+    return Treasury.interestRateStats(firstOfYear());
+  }
+
+  private static Date firstOfYear() {
+    Calendar firstOfYear = Calendar.getInstance();
+    firstOfYear.set(Calendar.DAY_OF_MONTH, 1);
+    firstOfYear.set(Calendar.MONTH, Calendar.JANUARY);
+    return firstOfYear.getTime();
+  }
+
+  private static TreasuryResponse.Record maxInterest(TreasuryResponse resp) {
+    TreasuryResponse.Record max = null;
+    for (TreasuryResponse.Record record : resp.data) {
+      if (max == null) {
+        max = record;
+      }
+      if (max.avg_interest_rate_amt < record.avg_interest_rate_amt) {
+        max = record;
+      }
+    }
+    return max;
+  }
 }
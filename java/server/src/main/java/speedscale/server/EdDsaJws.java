@@ -0,0 +1,90 @@
+package speedscale.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.jsonwebtoken.JwtBuilder;
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.security.SignatureException;
+
+// jjwt 0.11 has no EdDSA support, so Ed25519 tokens (RFC 8037) are signed
+// and checked here. The claims are still serialized by jjwt when signing,
+// and validated by jjwt once the signature has been checked.
+final class EdDsaJws {
+
+    static final String ALGORITHM = "EdDSA";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    // Header of the unsecured JWT handed back to jjwt for claims validation
+    private static final String UNSECURED_HEADER =
+        encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8));
+
+    private EdDsaJws() {
+    }
+
+    static String sign(JwtBuilder claims, String kid, PrivateKey key) throws GeneralSecurityException {
+        // An unsigned compact JWT is "header.payload.", we only keep the payload
+        String unsecured = claims.compact();
+        String payload = unsecured.substring(unsecured.indexOf('.') + 1, unsecured.length() - 1);
+
+        Map<String, String> header = new LinkedHashMap<String, String>();
+        header.put("kid", kid);
+        header.put("alg", ALGORITHM);
+        String signingInput;
+        try {
+            signingInput = encoder.encodeToString(mapper.writeValueAsBytes(header)) + "." + payload;
+        } catch (Exception e) {
+            throw new GeneralSecurityException(e);
+        }
+
+        Signature signer = Signature.getInstance("Ed25519");
+        signer.initSign(key);
+        signer.update(signingInput.getBytes(StandardCharsets.US_ASCII));
+        return signingInput + "." + encoder.encodeToString(signer.sign());
+    }
+
+    static JsonNode header(String jws) {
+        int dot = jws.indexOf('.');
+        if (dot < 0) {
+            throw new MalformedJwtException("JWT has no header");
+        }
+        try {
+            return mapper.readTree(decoder.decode(jws.substring(0, dot)));
+        } catch (Exception e) {
+            throw new MalformedJwtException("Unable to read JWT header", e);
+        }
+    }
+
+    // Checks the signature and returns the token as an unsecured JWT whose
+    // claims jjwt can validate
+    static String verify(String jws, PublicKey key) {
+        int first = jws.indexOf('.');
+        int last = jws.lastIndexOf('.');
+        if (first < 0 || first == last) {
+            throw new MalformedJwtException("JWT must have three segments");
+        }
+        try {
+            Signature verifier = Signature.getInstance("Ed25519");
+            verifier.initVerify(key);
+            verifier.update(jws.substring(0, last).getBytes(StandardCharsets.US_ASCII));
+            if (!verifier.verify(decoder.decode(jws.substring(last + 1)))) {
+                throw new SignatureException("JWT signature does not match");
+            }
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new SignatureException("Unable to verify EdDSA signature", e);
+        }
+        return UNSECURED_HEADER + jws.substring(first, last + 1);
+    }
+}
@@ -0,0 +1,422 @@
+package speedscale.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.crypto.Mac;
+
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.PrematureJwtException;
+import io.jsonwebtoken.security.SignatureException;
+
+// Allocation-light HS256 signing and verification for the tokens that
+// TokenManager issues. It writes the same bytes jjwt would for the same
+// claims, straight into per-thread buffers, and checks tokens without
+// building a Claims map. Anything it does not recognize is handed back to
+// jjwt.
+final class FastHs256 {
+
+    static final String ALGORITHM = "HS256";
+
+    // Returned by verify when the token has to go through jjwt instead
+    static final VerifiedToken FALLBACK = new VerifiedToken(null, 0, null);
+
+    private static final int MAX_FIELD_LENGTH = 256;
+
+    private static final byte[] HEADER_PREFIX = ascii("{\"kid\":\"");
+    private static final byte[] HEADER_SUFFIX = ascii("\",\"alg\":\"HS256\"}");
+    private static final byte[] LEGACY_HEADER = ascii("{\"alg\":\"HS256\"}");
+    private static final byte[] CLAIMS_ISSUER = ascii("{\"iss\":\"" + TokenManager.ISSUER + "\",\"sub\":\"");
+    private static final byte[] CLAIMS_AUDIENCE = ascii("\",\"aud\":\"" + TokenManager.AUDIENCE + "\",\"iat\":");
+    private static final byte[] CLAIMS_EXP = ascii(",\"exp\":");
+    private static final byte[] CLAIMS_NBF = ascii(",\"nbf\":");
+    private static final byte[] CLAIMS_JTI = ascii(",\"jti\":\"");
+    private static final byte[] NAME_SUB = ascii("sub");
+    private static final byte[] NAME_EXP = ascii("exp");
+    private static final byte[] NAME_NBF = ascii("nbf");
+    private static final byte[] NAME_JTI = ascii("jti");
+
+    private static final byte[] ENCODE =
+        ascii("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_");
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < ENCODE.length; i++) {
+            DECODE[ENCODE[i]] = (byte) i;
+        }
+    }
+
+    private static final class Buffers {
+        final byte[] json = new byte[2048];
+        final byte[] token = new byte[2048];
+        final byte[] computed = new byte[32];
+        final byte[] signature = new byte[32];
+        private final Mac mac;
+        private Key macKey;
+
+        Buffers() {
+            try {
+                mac = Mac.getInstance("HmacSHA256");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Mac mac(Key key) throws GeneralSecurityException {
+            if (macKey != key) {
+                mac.init(key);
+                macKey = key;
+            }
+            return mac;
+        }
+    }
+
+    private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    // Encoded header for each kid, these never change
+    private final ConcurrentHashMap<String, byte[]> headers = new ConcurrentHashMap<String, byte[]>();
+
+    // Returns null when the token has to be built by jjwt instead
+    String sign(String kid, Key key, String subject, long ts, String id) {
+        if (!isPlain(kid) || !isPlain(subject) || subject.isBlank() || !isPlain(id)) {
+            return null;
+        }
+        Buffers b = buffers.get();
+        byte[] header = headers.computeIfAbsent(kid, FastHs256::encodeHeader);
+
+        int n = put(b.json, 0, CLAIMS_ISSUER);
+        n = put(b.json, n, subject);
+        n = put(b.json, n, CLAIMS_AUDIENCE);
+        n = put(b.json, n, ts / 1000);
+        n = put(b.json, n, CLAIMS_EXP);
+        n = put(b.json, n, (ts + TokenManager.EXPIRATION_OFFSET) / 1000);
+        n = put(b.json, n, CLAIMS_NBF);
+        n = put(b.json, n, (ts - TokenManager.NOT_BEFORE_OFFSET) / 1000);
+        n = put(b.json, n, CLAIMS_JTI);
+        n = put(b.json, n, id);
+        b.json[n++] = '"';
+        b.json[n++] = '}';
+
+        byte[] out = b.token;
+        int t = put(out, 0, header);
+        out[t++] = '.';
+        t = encode(b.json, 0, n, out, t);
+        try {
+            Mac mac = b.mac(key);
+            mac.update(out, 0, t);
+            mac.doFinal(b.computed, 0);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+        out[t++] = '.';
+        t = encode(b.computed, 0, b.computed.length, out, t);
+        return new String(out, 0, t, StandardCharsets.ISO_8859_1);
+    }
+
+    // Returns the verified token, or FALLBACK if jjwt has to decide. Invalid
+    // tokens throw the same exceptions jjwt would.
+    VerifiedToken verify(String jws, Function<String, SigningKeyring.SigningKey> keys) {
+        return verify(jws, keys, System.currentTimeMillis());
+    }
+
+    // now is the epoch millis that exp and nbf are checked against
+    VerifiedToken verify(String jws, Function<String, SigningKeyring.SigningKey> keys, long now) {
+        Buffers b = buffers.get();
+        int len = jws.length();
+        if (len > b.token.length) {
+            return FALLBACK;
+        }
+        int dot1 = -1;
+        int dot2 = -1;
+        for (int i = 0; i < len; i++) {
+            char c = jws.charAt(i);
+            if (c > 127) {
+                return FALLBACK;
+            }
+            if (c == '.') {
+                if (dot1 < 0) {
+                    dot1 = i;
+                } else if (dot2 < 0) {
+                    dot2 = i;
+                } else {
+                    return FALLBACK;
+                }
+            }
+            b.token[i] = (byte) c;
+        }
+        if (dot2 < 0 || len - dot2 - 1 != 43) {
+            return FALLBACK;
+        }
+
+        // Header has to be exactly one of the two shapes we issue
+        int n = decode(b.token, 0, dot1, b.json, 0);
+        if (n < 0) {
+            return FALLBACK;
+        }
+        String kid;
+        if (equals(b.json, 0, n, LEGACY_HEADER)) {
+            kid = null;
+        } else if (n > HEADER_PREFIX.length + HEADER_SUFFIX.length
+                && startsWith(b.json, 0, HEADER_PREFIX)
+                && startsWith(b.json, n - HEADER_SUFFIX.length, HEADER_SUFFIX)) {
+            kid = new String(b.json, HEADER_PREFIX.length, n - HEADER_PREFIX.length - HEADER_SUFFIX.length,
+                StandardCharsets.ISO_8859_1);
+            if (!isPlain(kid)) {
+                return FALLBACK;
+            }
+        } else {
+            return FALLBACK;
+        }
+        SigningKeyring.SigningKey key = keys.apply(kid);
+        if (key == null || !ALGORITHM.equals(key.algorithm)) {
+            return FALLBACK;
+        }
+
+        if (decode(b.token, dot2 + 1, len, b.signature, 0) != 32) {
+            return FALLBACK;
+        }
+        try {
+            Mac mac = b.mac(key.verificationKey);
+            mac.update(b.token, 0, dot2);
+            mac.doFinal(b.computed, 0);
+        } catch (GeneralSecurityException e) {
+            return FALLBACK;
+        }
+        if (!MessageDigest.isEqual(b.computed, b.signature)) {
+            throw new SignatureException("JWT signature does not match locally computed signature");
+        }
+
+        n = decode(b.token, dot1 + 1, dot2, b.json, 0);
+        if (n < 0) {
+            return FALLBACK;
+        }
+        return readClaims(b.json, n, now);
+    }
+
+    // Reads a flat JSON object of string and integer values, which is all
+    // our tokens contain. Anything else goes back to jjwt.
+    private static VerifiedToken readClaims(byte[] json, int n, long now) {
+        String subject = null;
+        String id = null;
+        long exp = -1;
+        long nbf = -1;
+        int i = 0;
+        if (n < 2 || json[i++] != '{') {
+            return FALLBACK;
+        }
+        while (true) {
+            if (i >= n || json[i++] != '"') {
+                return FALLBACK;
+            }
+            int nameStart = i;
+            while (i < n && json[i] != '"' && json[i] != '\\') {
+                i++;
+            }
+            if (i >= n || json[i] != '"') {
+                return FALLBACK;
+            }
+            int nameEnd = i++;
+            if (i >= n || json[i++] != ':' || i >= n) {
+                return FALLBACK;
+            }
+            boolean isSub = equals(json, nameStart, nameEnd - nameStart, NAME_SUB);
+            boolean isExp = equals(json, nameStart, nameEnd - nameStart, NAME_EXP);
+            boolean isNbf = equals(json, nameStart, nameEnd - nameStart, NAME_NBF);
+            boolean isJti = equals(json, nameStart, nameEnd - nameStart, NAME_JTI);
+            if (json[i] == '"') {
+                int valueStart = ++i;
+                while (i < n && json[i] != '"' && json[i] != '\\') {
+                    i++;
+                }
+                if (i >= n || json[i] != '"') {
+                    return FALLBACK;
+                }
+                if (isSub) {
+                    subject = new String(json, valueStart, i - valueStart, StandardCharsets.UTF_8);
+                } else if (isJti) {
+                    id = new String(json, valueStart, i - valueStart, StandardCharsets.UTF_8);
+                } else if (isExp || isNbf) {
+                    return FALLBACK;
+                }
+                i++;
+            } else {
+                long value = 0;
+                int digits = 0;
+                while (i < n && json[i] >= '0' && json[i] <= '9') {
+                    value = value * 10 + (json[i++] - '0');
+                    digits++;
+                }
+                if (digits == 0 || digits > 15) {
+                    return FALLBACK;
+                }
+                if (isExp) {
+                    exp = value;
+                } else if (isNbf) {
+                    nbf = value;
+                } else if (isSub || isJti) {
+                    return FALLBACK;
+                }
+            }
+            if (i >= n) {
+                return FALLBACK;
+            }
+            byte c = json[i++];
+            if (c == '}') {
+                break;
+            }
+            if (c != ',') {
+                return FALLBACK;
+            }
+        }
+        if (i != n) {
+            return FALLBACK;
+        }
+
+        // Same checks jjwt makes, without clock skew
+        if (exp >= 0 && now > exp * 1000) {
+            throw new ExpiredJwtException(null, null, "JWT expired at " + exp * 1000);
+        }
+        if (nbf >= 0 && now < nbf * 1000) {
+            throw new PrematureJwtException(null, null, "JWT not valid before " + nbf * 1000);
+        }
+        return new VerifiedToken(subject, exp >= 0 ? exp * 1000 : 0, id);
+    }
+
+    private static byte[] encodeHeader(String kid) {
+        byte[] json = new byte[HEADER_PREFIX.length + kid.length() + HEADER_SUFFIX.length];
+        int n = put(json, 0, HEADER_PREFIX);
+        n = put(json, n, kid);
+        n = put(json, n, HEADER_SUFFIX);
+        byte[] out = new byte[(n + 2) / 3 * 4];
+        return Arrays.copyOf(out, encode(json, 0, n, out, 0));
+    }
+
+    // Printable ASCII that JSON serializes without escaping
+    private static boolean isPlain(String s) {
+        if (s == null || s.isEmpty() || s.length() > MAX_FIELD_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x20 || c > 0x7e || c == '"' || c == '\\') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int encode(byte[] src, int off, int len, byte[] dst, int dp) {
+        int end = off + len - len % 3;
+        for (int i = off; i < end; i += 3) {
+            int bits = (src[i] & 0xff) << 16 | (src[i + 1] & 0xff) << 8 | (src[i + 2] & 0xff);
+            dst[dp++] = ENCODE[bits >>> 18 & 0x3f];
+            dst[dp++] = ENCODE[bits >>> 12 & 0x3f];
+            dst[dp++] = ENCODE[bits >>> 6 & 0x3f];
+            dst[dp++] = ENCODE[bits & 0x3f];
+        }
+        int rem = len % 3;
+        if (rem > 0) {
+            int bits = (src[end] & 0xff) << 16;
+            if (rem == 2) {
+                bits |= (src[end + 1] & 0xff) << 8;
+            }
+            dst[dp++] = ENCODE[bits >>> 18 & 0x3f];
+            dst[dp++] = ENCODE[bits >>> 12 & 0x3f];
+            if (rem == 2) {
+                dst[dp++] = ENCODE[bits >>> 6 & 0x3f];
+            }
+        }
+        return dp;
+    }
+
+    // Decodes unpadded base64url from src[from, to) into dst, returning the
+    // number of bytes written or -1 if the input is not base64url
+    static int decode(byte[] src, int from, int to, byte[] dst, int dp) {
+        int len = to - from;
+        int rem = len % 4;
+        if (rem == 1 || (len / 4) * 3 + Math.max(rem - 1, 0) > dst.length - dp) {
+            return -1;
+        }
+        int start = dp;
+        int end = to - rem;
+        for (int i = from; i < end; i += 4) {
+            int b0 = value(src[i]);
+            int b1 = value(src[i + 1]);
+            int b2 = value(src[i + 2]);
+            int b3 = value(src[i + 3]);
+            if ((b0 | b1 | b2 | b3) < 0) {
+                return -1;
+            }
+            int bits = b0 << 18 | b1 << 12 | b2 << 6 | b3;
+            dst[dp++] = (byte) (bits >> 16);
+            dst[dp++] = (byte) (bits >> 8);
+            dst[dp++] = (byte) bits;
+        }
+        if (rem > 0) {
+            int b0 = value(src[end]);
+            int b1 = value(src[end + 1]);
+            int b2 = rem == 3 ? value(src[end + 2]) : 0;
+            if ((b0 | b1 | b2) < 0) {
+                return -1;
+            }
+            int bits = b0 << 18 | b1 << 12 | b2 << 6;
+            dst[dp++] = (byte) (bits >> 16);
+            if (rem == 3) {
+                dst[dp++] = (byte) (bits >> 8);
+            }
+        }
+        return dp - start;
+    }
+
+    private static int value(byte b) {
+        return b < 0 ? -1 : DECODE[b];
+    }
+
+    private static int put(byte[] dst, int dp, byte[] src) {
+        System.arraycopy(src, 0, dst, dp, src.length);
+        return dp + src.length;
+    }
+
+    private static int put(byte[] dst, int dp, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            dst[dp++] = (byte) s.charAt(i);
+        }
+        return dp;
+    }
+
+    private static int put(byte[] dst, int dp, long v) {
+        if (v == 0) {
+            dst[dp++] = '0';
+            return dp;
+        }
+        int start = dp;
+        while (v > 0) {
+            dst[dp++] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        for (int i = start, j = dp - 1; i < j; i++, j--) {
+            byte tmp = dst[i];
+            dst[i] = dst[j];
+            dst[j] = tmp;
+        }
+        return dp;
+    }
+
+    private static boolean startsWith(byte[] a, int off, byte[] prefix) {
+        return Arrays.equals(a, off, off + prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static boolean equals(byte[] a, int off, int len, byte[] b) {
+        return len == b.length && startsWith(a, off, b);
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -17,6 +17,15 @@ public class JwtFilter extends OncePerRequestFilter {
     @Autowired
     TokenManager tokenManager;
 
+    @Autowired
+    VerifiedTokenCache tokenCache;
+
+    @Autowired
+    TokenRejections rejections;
+
+    @Autowired
+    TokenRevocations revocations;
+
     @Override
     protected boolean shouldNotFilter(HttpServletRequest request) {
         String uri = request.getRequestURI();
@@ -24,6 +33,8 @@ public class JwtFilter extends OncePerRequestFilter {
             case "/login":
             case "/healthz":
             case "/rsaToken":
+            case "/ecToken":
+            case "/edToken":
                 return true;
             default:
                 return false;
@@ -37,13 +48,35 @@ public class JwtFilter extends OncePerRequestFilter {
 
         String tokenHeader = request.getHeader("Authorization");
         if (tokenHeader == null || !tokenHeader.startsWith("Bearer ")) {
+            rejections.reject(TokenRejections.Reason.MISSING, request.getRequestURI());
             response.setStatus(HttpServletResponse.SC_FORBIDDEN);
             return;
         }
         String token = tokenHeader.substring(7);
         
-        // If the JWT is not valid, return unauthorized
-        if (!tokenManager.validateJwtToken(token)) {
+        // Tokens we have already verified skip the signature check
+        VerifiedToken verified = tokenCache.get(token);
+        if (verified == null) {
+            // Garbage and expired tokens are turned away before any crypto
+            TokenRejections.Reason reason = TokenPrecheck.check(token, System.currentTimeMillis());
+            if (reason != null) {
+                rejections.reject(reason, request.getRequestURI());
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+
+            // If the JWT is not valid, return unauthorized
+            verified = tokenManager.verifyJwtToken(token);
+            if (verified == null) {
+                response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+                return;
+            }
+            tokenCache.put(token, verified);
+        }
+
+        // Checked on cache hits too, a revoked token may already be cached
+        if (revocations.isRevoked(verified.id)) {
+            rejections.reject(TokenRejections.Reason.REVOKED, verified.id);
             response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
             return;
         }
@@ -0,0 +1,332 @@
+package speedscale.server;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.SubjectPublicKeyInfo;
+import org.bouncycastle.openssl.PEMKeyPair;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+// Signing keys indexed by kid. Keys come from the built-in defaults
+// (my.hmacSecret and the RSA key pair) plus an optional watched directory:
+//
+//   <kid>.hmac  HS256 secret
+//   <kid>.key   PEM private key (RSA, EC or Ed25519), used for signing
+//               and verification
+//   <kid>.pub   PEM public key, verification only. Also needed next to a
+//               .key whose PEM does not carry the public key
+//
+// The newest file with signing material is the active signer for its
+// algorithm. Lookups read an immutable snapshot that is swapped atomically
+// on every reload, so rotation never blocks validation.
+@Component
+public class SigningKeyring {
+
+    static final Logger log = LogManager.getLogger();
+
+    public static final class SigningKey {
+        public final String kid;
+        public final String algorithm;
+        public final Key signingKey;
+        public final Key verificationKey;
+        final long modified;
+
+        SigningKey(String kid, String algorithm, Key signingKey, Key verificationKey, long modified) {
+            this.kid = kid;
+            this.algorithm = algorithm;
+            this.signingKey = signingKey;
+            this.verificationKey = verificationKey;
+            this.modified = modified;
+        }
+    }
+
+    private static final class Snapshot {
+        final Map<String, SigningKey> defaults;
+        final Map<String, SigningKey> files;
+        final Map<String, SigningKey> byKid = new HashMap<String, SigningKey>();
+        final Map<String, SigningKey> activeByAlg = new HashMap<String, SigningKey>();
+
+        Snapshot(Map<String, SigningKey> defaults, Map<String, SigningKey> files) {
+            this.defaults = defaults;
+            this.files = files;
+            for (SigningKey key : defaults.values()) {
+                byKid.put(key.kid, key);
+                activeByAlg.put(key.algorithm, key);
+            }
+            Map<String, SigningKey> newest = new HashMap<String, SigningKey>();
+            for (SigningKey key : files.values()) {
+                byKid.put(key.kid, key);
+                SigningKey current = newest.get(key.algorithm);
+                if (key.signingKey != null && (current == null || current.modified < key.modified)) {
+                    newest.put(key.algorithm, key);
+                }
+            }
+            activeByAlg.putAll(newest);
+        }
+    }
+
+    private final String keyDirectory;
+    private final VerifiedTokenCache tokenCache;
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), Collections.emptyMap());
+    private WatchService watcher;
+
+    public SigningKeyring(
+            @Value("${my.keyDirectory:}") String keyDirectory,
+            VerifiedTokenCache tokenCache) {
+        this.keyDirectory = keyDirectory;
+        this.tokenCache = tokenCache;
+    }
+
+    @PostConstruct
+    void start() throws IOException {
+        if (keyDirectory.isEmpty()) {
+            return;
+        }
+        Path dir = Path.of(keyDirectory);
+        Files.createDirectories(dir);
+        reload();
+
+        watcher = FileSystems.getDefault().newWatchService();
+        dir.register(watcher,
+            StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_MODIFY,
+            StandardWatchEventKinds.ENTRY_DELETE);
+        Thread t = new Thread(this::watch, "keyring-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    @PreDestroy
+    void stop() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    public SigningKey get(String kid) {
+        return snapshot.byKid.get(kid);
+    }
+
+    public SigningKey active(String algorithm) {
+        return snapshot.activeByAlg.get(algorithm);
+    }
+
+    // Built-in keys are used when the directory has nothing newer, and for
+    // tokens issued before kid headers existed
+    public synchronized void setDefault(String kid, String algorithm, Key signingKey, Key verificationKey) {
+        Map<String, SigningKey> defaults = new HashMap<String, SigningKey>(snapshot.defaults);
+        defaults.put(algorithm, new SigningKey(kid, algorithm, signingKey, verificationKey, 0));
+        snapshot = new Snapshot(defaults, snapshot.files);
+    }
+
+    public SigningKey getDefault(String algorithm) {
+        return snapshot.defaults.get(algorithm);
+    }
+
+    synchronized void reload() {
+        Snapshot previous = snapshot;
+        Map<String, SigningKey> files = new LinkedHashMap<String, SigningKey>();
+        File[] list = new File(keyDirectory).listFiles();
+        if (list != null) {
+            Map<String, Key[]> parts = new HashMap<String, Key[]>();
+            Map<String, Long> modified = new HashMap<String, Long>();
+            Set<String> failed = new HashSet<String>();
+            for (File f : list) {
+                String name = f.getName();
+                int dot = name.lastIndexOf('.');
+                if (dot <= 0 || !f.isFile()) {
+                    continue;
+                }
+                String kid = name.substring(0, dot);
+                Key[] kp = parts.computeIfAbsent(kid, k -> new Key[2]);
+                try {
+                    switch (name.substring(dot + 1)) {
+                        case "hmac":
+                            kp[0] = readSecret(f);
+                            kp[1] = kp[0];
+                            break;
+                        case "key":
+                            Key[] pair = readPrivateKey(f);
+                            kp[0] = pair[0];
+                            if (kp[1] == null) {
+                                kp[1] = pair[1];
+                            }
+                            break;
+                        case "pub":
+                            kp[1] = readPublicKey(f);
+                            break;
+                        default:
+                            continue;
+                    }
+                    modified.merge(kid, f.lastModified(), Math::max);
+                } catch (Exception e) {
+                    // Most likely a half-written file, keep whatever we had
+                    log.warn("Unable to read key file " + f + ": " + e.getMessage());
+                    failed.add(kid);
+                }
+            }
+            for (Map.Entry<String, Key[]> e : parts.entrySet()) {
+                String kid = e.getKey();
+                Key[] kp = e.getValue();
+                String alg = kp[1] == null ? null : algorithmFor(kp[1]);
+                if (alg == null || failed.contains(kid) || !modified.containsKey(kid)) {
+                    SigningKey old = previous.files.get(kid);
+                    if (old != null) {
+                        files.put(kid, old);
+                    }
+                    continue;
+                }
+                files.put(kid, new SigningKey(kid, alg, kp[0], kp[1], modified.get(kid)));
+            }
+        }
+        snapshot = new Snapshot(previous.defaults, files);
+
+        // Tokens signed by a key that is gone, or replaced under the same
+        // kid, must go through verification again, which will now reject
+        // them
+        if (!files.keySet().containsAll(previous.files.keySet()) || replacedAny(previous.files, files)) {
+            tokenCache.invalidateAll();
+        }
+        log.info("Loaded " + files.size() + " signing keys from " + keyDirectory);
+    }
+
+    private static boolean replacedAny(Map<String, SigningKey> before, Map<String, SigningKey> after) {
+        for (Map.Entry<String, SigningKey> e : before.entrySet()) {
+            SigningKey now = after.get(e.getKey());
+            if (now != null && now != e.getValue() && (!now.algorithm.equals(e.getValue().algorithm)
+                    || !Arrays.equals(now.verificationKey.getEncoded(), e.getValue().verificationKey.getEncoded()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                // Let a burst of events (e.g. a key and its .pub) settle
+                // into a single reload
+                Thread.sleep(200);
+                while (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                    key = watcher.poll(50, TimeUnit.MILLISECONDS);
+                }
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // shutting down
+        }
+    }
+
+    static String algorithmFor(Key key) {
+        switch (key.getAlgorithm()) {
+            case "HmacSHA256":
+                return "HS256";
+            case "RSA":
+                return "RS256";
+            case "EC":
+            case "ECDSA":
+                return ecAlgorithmFor((ECKey) key);
+            case "EdDSA":
+            case "Ed25519":
+                return "EdDSA";
+            default:
+                return null;
+        }
+    }
+
+    private static String ecAlgorithmFor(ECKey key) {
+        switch (key.getParams().getCurve().getField().getFieldSize()) {
+            case 256:
+                return "ES256";
+            case 384:
+                return "ES384";
+            case 521:
+                return "ES512";
+            default:
+                return null;
+        }
+    }
+
+    private static Key readSecret(File f) throws IOException {
+        byte[] secret = Files.readString(f.toPath(), StandardCharsets.UTF_8).trim().getBytes();
+        if (secret.length < 32) {
+            throw new IOException("HS256 secrets must be at least 256 bits");
+        }
+        return new SecretKeySpec(secret, "HmacSHA256");
+    }
+
+    // Returns the private key and, when it can be derived, the public key
+    private static Key[] readPrivateKey(File f) throws Exception {
+        JcaPEMKeyConverter converter = new JcaPEMKeyConverter();
+        try (PEMParser parser = new PEMParser(new FileReader(f))) {
+            Object o = parser.readObject();
+            if (o instanceof PEMKeyPair) {
+                PEMKeyPair pair = (PEMKeyPair) o;
+                return new Key[] {
+                    converter.getPrivateKey(pair.getPrivateKeyInfo()),
+                    converter.getPublicKey(pair.getPublicKeyInfo())
+                };
+            }
+            if (o instanceof PrivateKeyInfo) {
+                PrivateKey priv = converter.getPrivateKey((PrivateKeyInfo) o);
+                PublicKey pub = null;
+                if (priv instanceof RSAPrivateCrtKey) {
+                    RSAPrivateCrtKey crt = (RSAPrivateCrtKey) priv;
+                    pub = KeyFactory.getInstance("RSA").generatePublic(
+                        new RSAPublicKeySpec(crt.getModulus(), crt.getPublicExponent()));
+                }
+                return new Key[] { priv, pub };
+            }
+        }
+        throw new IOException("no private key found");
+    }
+
+    private static PublicKey readPublicKey(File f) throws Exception {
+        try (PEMParser parser = new PEMParser(new FileReader(f))) {
+            Object o = parser.readObject();
+            if (o instanceof SubjectPublicKeyInfo) {
+                return new JcaPEMKeyConverter().getPublicKey((SubjectPublicKeyInfo) o);
+            }
+        }
+        throw new IOException("no public key found");
+    }
+}
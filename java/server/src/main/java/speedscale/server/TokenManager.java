@@ -9,10 +9,17 @@ import java.security.Key;
 import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -21,157 +28,308 @@ import org.bouncycastle.openssl.jcajce.JcaPEMWriter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.fasterxml.jackson.databind.JsonNode;
+
 import io.jsonwebtoken.Claims;
 import io.jsonwebtoken.JwsHeader;
 import io.jsonwebtoken.JwtBuilder;
 import io.jsonwebtoken.JwtException;
+import io.jsonwebtoken.JwtParser;
+import io.jsonwebtoken.MalformedJwtException;
 import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
 import io.jsonwebtoken.SigningKeyResolverAdapter;
 import io.jsonwebtoken.security.Keys;
+import jakarta.annotation.PostConstruct;
 
 @Component
 public class TokenManager {
     
     static final Logger log = LogManager.getLogger();
 
-    @Value("${my.hmacSecret}")
-    private String hmacSecret;
+    private final String rsaPrivateKeyFile;
+    private final String rsaPublicKeyFile;
+
+    // Built once at startup, immutable and safe to share across request
+    // threads
+    private final JwtParser parser;
 
-    @Value("${my.rsaPrivateKeyFile}")
-    private String rsaPrivateKeyFile;
+    private final SigningKeyring keyring;
+    private final TokenRejections rejections;
 
-    @Value("${my.rsaPublicKeyFile}")
-    private String rsaPublicKeyFile;
+    // Opt-in HS256 path that skips jjwt for the tokens we issue, null when
+    // disabled
+    private final FastHs256 fastHs256;
+    private final Function<String, SigningKeyring.SigningKey> hmacKeys;
 
-    private Key rsaPrivateKey;
-    private Key rsaPublicKey;
+    // Completed once by the startup loader, which also safely publishes the
+    // keys to every request thread
+    private final CompletableFuture<KeyPair> rsaKeyPair = new CompletableFuture<KeyPair>();
 
     private MySigningKeyResolver resolver = new MySigningKeyResolver();
 
     public static int EXPIRATION_OFFSET = 60 * 60 * 24 * 1000;
 
+    static final String ISSUER = "java-server";
+    static final String AUDIENCE = "spacex-fans";
+    static final long NOT_BEFORE_OFFSET = 60 * 60 * 1000;
+
+    static final String DEFAULT_HMAC_KID = "default-hs256";
+    static final String DEFAULT_RSA_KID = "default-rs256";
+    static final String DEFAULT_EC_KID = "default-es256";
+    static final String DEFAULT_ED_KID = "default-eddsa";
+
+    public TokenManager(
+            @Value("${my.hmacSecret}") String hmacSecret,
+            @Value("${my.rsaPrivateKeyFile}") String rsaPrivateKeyFile,
+            @Value("${my.rsaPublicKeyFile}") String rsaPublicKeyFile,
+            @Value("${my.fastHs256:false}") boolean fastHs256,
+            SigningKeyring keyring,
+            TokenRejections rejections) {
+        this.rsaPrivateKeyFile = rsaPrivateKeyFile;
+        this.rsaPublicKeyFile = rsaPublicKeyFile;
+        this.keyring = keyring;
+        this.rejections = rejections;
+        this.fastHs256 = fastHs256 ? new FastHs256() : null;
+        this.hmacKeys = kid -> resolver.lookup(kid, FastHs256.ALGORITHM);
+        Key hmacKey = Keys.hmacShaKeyFor(hmacSecret.getBytes());
+        keyring.setDefault(DEFAULT_HMAC_KID, "HS256", hmacKey, hmacKey);
+
+        // EC and Ed25519 keys are cheap to generate, so the built-in ones
+        // are made fresh on every start. Use my.keyDirectory for keys that
+        // need to outlive a restart.
+        KeyPair ec = generateKeyPair("EC", new ECGenParameterSpec("secp256r1"));
+        keyring.setDefault(DEFAULT_EC_KID, "ES256", ec.getPrivate(), ec.getPublic());
+        KeyPair ed = generateKeyPair("Ed25519", null);
+        keyring.setDefault(DEFAULT_ED_KID, EdDsaJws.ALGORITHM, ed.getPrivate(), ed.getPublic());
+
+        this.parser = Jwts.parserBuilder()
+            .setSigningKeyResolver(resolver)
+            .build();
+    }
+
     public String generateHmacToken(String username) {
-        Key hmacShaKey = Keys.hmacShaKeyFor(hmacSecret.getBytes());
-        return makeBuilder(username)
-            .signWith(hmacShaKey).compact();
+        return sign(username, keyring.active("HS256"));
     }
 
     public String generateRsaToken(String username) {
-        // Initialize the RSA key if it doesn't already exist
-        Key rsaKey = getRsaKey();
-        return makeBuilder(username)
-            .signWith(rsaKey).compact();
+        SigningKeyring.SigningKey key = keyring.active("RS256");
+        if (key == null) {
+            getRsaKeyPair();
+            key = keyring.active("RS256");
+        }
+        return sign(username, key);
+    }
+
+    public String generateEcToken(String username) {
+        return sign(username, keyring.active("ES256"));
+    }
+
+    public String generateEdToken(String username) {
+        return sign(username, keyring.active(EdDsaJws.ALGORITHM));
     }
 
     public Boolean validateJwtToken(String jwsString) {
+        return verifyJwtToken(jwsString) != null;
+    }
+
+    // Returns the verified token, or null if it is not valid
+    public VerifiedToken verifyJwtToken(String jwsString) {
         try {
-            Jwts.parserBuilder()
-                .setSigningKeyResolver(resolver)
-                .build()
-                .parseClaimsJws(jwsString);
-            
-                return true;
-        } catch (JwtException e) {
-            e.printStackTrace();
+            if (fastHs256 != null) {
+                VerifiedToken token = fastHs256.verify(jwsString, hmacKeys);
+                if (token != FastHs256.FALLBACK) {
+                    return token;
+                }
+            }
+            // Only EdDSA tokens pay for parsing the header here, jjwt
+            // parses it for the rest anyway
+            if (EdDsaJws.ALGORITHM.equals(TokenPrecheck.algorithm(jwsString))) {
+                JsonNode header = EdDsaJws.header(jwsString);
+                if (!EdDsaJws.ALGORITHM.equals(header.path("alg").asText())) {
+                    throw new MalformedJwtException("Ambiguous JWT header alg");
+                }
+                String kid = header.path("kid").asText(null);
+                SigningKeyring.SigningKey key = resolver.lookup(kid, EdDsaJws.ALGORITHM);
+                if (key == null || !EdDsaJws.ALGORITHM.equals(key.algorithm)) {
+                    throw new JwtException("No EdDSA signing key for kid " + kid);
+                }
+                String unsecured = EdDsaJws.verify(jwsString, (PublicKey) key.verificationKey);
+                return VerifiedToken.of(parser.parseClaimsJwt(unsecured).getBody());
+            }
+            return VerifiedToken.of(parser.parseClaimsJws(jwsString).getBody());
+        } catch (JwtException | IllegalArgumentException e) {
+            rejections.reject(e);
         }
-        return false;
+        return null;
     }
 
-    // This lets us handle both HMAC and RSA for validation
+    // Looks the key up by kid, falling back to the built-in key for the
+    // algorithm for tokens issued without one
     private class MySigningKeyResolver extends SigningKeyResolverAdapter {
         @Override
-        public Key resolveSigningKey(JwsHeader jwsHeader, Claims claims) { 
-            // Use this key for HMAC
-            if (jwsHeader.getAlgorithm().equals("HS256")) {
-                return Keys.hmacShaKeyFor(hmacSecret.getBytes()); 
+        public Key resolveSigningKey(JwsHeader jwsHeader, Claims claims) {
+            String kid = jwsHeader.getKeyId();
+            SigningKeyring.SigningKey key = lookup(kid, jwsHeader.getAlgorithm());
+            if (key == null && !rsaKeyPair.isDone()) {
+                getRsaKeyPair();
+                key = lookup(kid, jwsHeader.getAlgorithm());
             }
 
-            // Use this key for RSA
-            if (jwsHeader.getAlgorithm().equals("RS256")) {
-                return getRsaKey();
+            // The header alg has to match the key, never let a token pick
+            // a different algorithm for a known key
+            if (key == null || !key.algorithm.equals(jwsHeader.getAlgorithm())) {
+                throw new JwtException("No " + jwsHeader.getAlgorithm() + " signing key for kid " + kid);
             }
+            return key.verificationKey;
+        }
 
-            return null;
+        private SigningKeyring.SigningKey lookup(String kid, String algorithm) {
+            return kid != null ? keyring.get(kid) : keyring.getDefault(algorithm);
         }
     }
 
-    private JwtBuilder makeBuilder(String username) {
+    private String sign(String username, SigningKeyring.SigningKey key) {
         long ts = System.currentTimeMillis();
+        String id = UUID.randomUUID().toString();
+        if (fastHs256 != null && FastHs256.ALGORITHM.equals(key.algorithm)) {
+            String token = fastHs256.sign(key.kid, key.signingKey, username, ts, id);
+            if (token != null) {
+                return token;
+            }
+        }
+        if (EdDsaJws.ALGORITHM.equals(key.algorithm)) {
+            try {
+                return EdDsaJws.sign(makeBuilder(username, ts, id), key.kid, (PrivateKey) key.signingKey);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Unable to sign EdDSA token", e);
+            }
+        }
+        return makeBuilder(username, ts, id)
+            .setHeaderParam(JwsHeader.KEY_ID, key.kid)
+            .signWith(key.signingKey, SignatureAlgorithm.forName(key.algorithm))
+            .compact();
+    }
+
+    // FastHs256 writes these same claims by hand, keep the two in sync
+    static JwtBuilder makeBuilder(String username, long ts, String id) {
         return Jwts.builder()
-            .setIssuer("java-server")
+            .setIssuer(ISSUER)
             .setSubject(username)
-            .setAudience("spacex-fans")
+            .setAudience(AUDIENCE)
             .setIssuedAt(new Date(ts))
             .setExpiration(new Date(ts + EXPIRATION_OFFSET))
-            .setNotBefore(new Date(ts - 60 * 60 * 1000));
+            .setNotBefore(new Date(ts - NOT_BEFORE_OFFSET))
+            .setId(id);
     }
 
-    private Key getRsaKey() {
-        if (rsaPrivateKey == null) {
-            // First check if the files exist
-            File filePrivateKey = new File(rsaPrivateKeyFile);
-            if (filePrivateKey.exists()) {
-                readKeys();
-            } else {
-                generateAndWriteKeyPair();
+    // Reads the RSA key pair from disk, or generates one, off the request
+    // path so the first /rsaToken or RS256 request does not pay for it
+    @PostConstruct
+    void loadRsaKeyPair() {
+        Thread loader = new Thread(() -> {
+            try {
+                File filePrivateKey = new File(rsaPrivateKeyFile);
+                KeyPair kp;
+                if (filePrivateKey.exists()) {
+                    kp = readKeys();
+                } else {
+                    kp = generateAndWriteKeyPair();
+                }
+                keyring.setDefault(DEFAULT_RSA_KID, "RS256", kp.getPrivate(), kp.getPublic());
+                rsaKeyPair.complete(kp);
+            } catch (Exception e) {
+                // Anything, or requests waiting for the keys wait forever
+                log.error("Unable to load RSA key pair, RS256 tokens are rejected until restarted", e);
+                rsaKeyPair.completeExceptionally(e);
             }
+        }, "rsa-key-loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    public boolean isReady() {
+        return rsaKeyPair.isDone() && !rsaKeyPair.isCompletedExceptionally();
+    }
+
+    // Why the RSA key pair could not be loaded, null while loading or once
+    // loaded. Nothing retries the load, a restart is needed.
+    public Throwable keyLoadFailure() {
+        if (!rsaKeyPair.isCompletedExceptionally()) {
+            return null;
+        }
+        try {
+            rsaKeyPair.join();
+            return null;
+        } catch (CompletionException e) {
+            return e.getCause();
         }
-        return rsaPrivateKey;
     }
 
-    private void readKeys() {
-        
+    private static KeyPair generateKeyPair(String algorithm, AlgorithmParameterSpec params) {
         try {
-            java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
-            KeyFactory factory = KeyFactory.getInstance("RSA");
-
-            log.info("Reading RSA private key from " + rsaPrivateKeyFile);
-            FileReader fr = new FileReader(rsaPrivateKeyFile);
-            PEMParser pemParser = new PEMParser(fr);
-            PKCS8EncodedKeySpec privKeySpec = new PKCS8EncodedKeySpec(pemParser.readPemObject().getContent());
-            rsaPrivateKey = factory.generatePrivate(privKeySpec);
-            fr.close();
-
-            log.info("Reading RSA public key from " + rsaPublicKeyFile);
-            fr = new FileReader(rsaPublicKeyFile);
-            pemParser = new PEMParser(fr);
-            X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(pemParser.readPemObject().getContent());
-            rsaPublicKey = factory.generatePublic(pubKeySpec);
-            fr.close();
-
-        } catch (IOException e) {
-            e.printStackTrace();
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+            if (params != null) {
+                generator.initialize(params);
+            }
+            return generator.generateKeyPair();
         } catch (GeneralSecurityException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("Unable to generate " + algorithm + " key pair", e);
         }
     }
 
-    private void generateAndWriteKeyPair() {
+    // A failed load is a JwtException, so verification rejects the token
+    // rather than failing the request
+    private KeyPair getRsaKeyPair() {
+        // Only blocks for requests that arrive before the startup load is done
         try {
-            log.info("Generating RSA key pair for the first time");
-            KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
-            generator.initialize(2048);
-            KeyPair rsaKeyPair = generator.generateKeyPair();
-            rsaPublicKey = rsaKeyPair.getPublic();
-            rsaPrivateKey = rsaKeyPair.getPrivate();
-            
-            // Write out the public key
-            FileWriter fw = new FileWriter(rsaPublicKeyFile);
-            JcaPEMWriter writer = new JcaPEMWriter(fw);
-            writer.writeObject(rsaPublicKey);
-            writer.close();
-            fw.close();
-
-            // Write out the private key
-            fw = new FileWriter(rsaPrivateKeyFile);
-            writer = new JcaPEMWriter(fw);
-            writer.writeObject(rsaPrivateKey);
-            writer.close();
-            fw.close();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            return rsaKeyPair.join();
+        } catch (CompletionException e) {
+            throw new JwtException("RSA key pair could not be loaded", e.getCause());
         }
     }
+
+    private KeyPair readKeys() throws IOException, GeneralSecurityException {
+        java.security.Security.addProvider(new org.bouncycastle.jce.provider.BouncyCastleProvider());
+        KeyFactory factory = KeyFactory.getInstance("RSA");
+
+        log.info("Reading RSA private key from " + rsaPrivateKeyFile);
+        FileReader fr = new FileReader(rsaPrivateKeyFile);
+        PEMParser pemParser = new PEMParser(fr);
+        PKCS8EncodedKeySpec privKeySpec = new PKCS8EncodedKeySpec(pemParser.readPemObject().getContent());
+        PrivateKey rsaPrivateKey = factory.generatePrivate(privKeySpec);
+        fr.close();
+
+        log.info("Reading RSA public key from " + rsaPublicKeyFile);
+        fr = new FileReader(rsaPublicKeyFile);
+        pemParser = new PEMParser(fr);
+        X509EncodedKeySpec pubKeySpec = new X509EncodedKeySpec(pemParser.readPemObject().getContent());
+        PublicKey rsaPublicKey = factory.generatePublic(pubKeySpec);
+        fr.close();
+
+        return new KeyPair(rsaPublicKey, rsaPrivateKey);
+    }
+
+    private KeyPair generateAndWriteKeyPair() throws IOException, GeneralSecurityException {
+        log.info("Generating RSA key pair for the first time");
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair rsaKeyPair = generator.generateKeyPair();
+
+        // Write out the public key
+        FileWriter fw = new FileWriter(rsaPublicKeyFile);
+        JcaPEMWriter writer = new JcaPEMWriter(fw);
+        writer.writeObject(rsaKeyPair.getPublic());
+        writer.close();
+        fw.close();
+
+        // Write out the private key
+        fw = new FileWriter(rsaPrivateKeyFile);
+        writer = new JcaPEMWriter(fw);
+        writer.writeObject(rsaKeyPair.getPrivate());
+        writer.close();
+        fw.close();
+
+        return rsaKeyPair;
+    }
 }
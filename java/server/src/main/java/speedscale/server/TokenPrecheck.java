@@ -0,0 +1,149 @@
+package speedscale.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Set;
+
+// Cheap structural checks run before a token reaches any crypto: three
+// base64url segments, a header alg we can verify, and an exp claim that is
+// not already in the past. Returns the rejection reason, or null when the
+// token is worth verifying.
+final class TokenPrecheck {
+
+    static final Set<String> ALGORITHMS = Set.of("HS256", "RS256", "ES256", "ES384", "ES512", EdDsaJws.ALGORITHM);
+
+    private static final int MAX_TOKEN_LENGTH = 8192;
+
+    private static final byte[] ALG = {'"', 'a', 'l', 'g', '"'};
+    private static final byte[] EXP = {'"', 'e', 'x', 'p', '"'};
+
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[MAX_TOKEN_LENGTH]);
+    // Header and payload are decoded here, base64 is never longer decoded
+    private static final ThreadLocal<byte[]> decoded =
+        ThreadLocal.withInitial(() -> new byte[MAX_TOKEN_LENGTH / 4 * 3]);
+
+    private TokenPrecheck() {
+    }
+
+    static TokenRejections.Reason check(String jws, long now) {
+        int len = jws.length();
+        if (len == 0 || len > MAX_TOKEN_LENGTH) {
+            return TokenRejections.Reason.MALFORMED;
+        }
+        byte[] token = buffers.get();
+        int dot1 = -1;
+        int dot2 = -1;
+        for (int i = 0; i < len; i++) {
+            char c = jws.charAt(i);
+            if (c == '.') {
+                if (dot1 < 0) {
+                    dot1 = i;
+                } else if (dot2 < 0) {
+                    dot2 = i;
+                } else {
+                    return TokenRejections.Reason.MALFORMED;
+                }
+            } else if (!isBase64Url(c)) {
+                return TokenRejections.Reason.BAD_ENCODING;
+            }
+            token[i] = (byte) c;
+        }
+        if (dot2 < 0 || dot1 == 0 || dot2 == dot1 + 1 || dot2 == len - 1) {
+            return TokenRejections.Reason.MALFORMED;
+        }
+
+        byte[] json = decoded.get();
+        int n = FastHs256.decode(token, 0, dot1, json, 0);
+        if (n < 0) {
+            return TokenRejections.Reason.BAD_ENCODING;
+        }
+        String alg = stringValue(json, 0, n, ALG);
+        if (alg == null || !ALGORITHMS.contains(alg)) {
+            return TokenRejections.Reason.UNSUPPORTED_ALGORITHM;
+        }
+
+        n = FastHs256.decode(token, dot1 + 1, dot2, json, 0);
+        if (n < 0) {
+            return TokenRejections.Reason.BAD_ENCODING;
+        }
+        long exp = longValue(json, 0, n, EXP);
+        if (exp >= 0 && now > exp * 1000) {
+            return TokenRejections.Reason.EXPIRED;
+        }
+        return null;
+    }
+
+    // The header alg, or null when there is none to read, found the same way
+    // check does so callers can branch on it without a JSON parse
+    static String algorithm(String jws) {
+        int dot = jws.indexOf('.');
+        if (dot <= 0 || dot > MAX_TOKEN_LENGTH) {
+            return null;
+        }
+        byte[] token = buffers.get();
+        for (int i = 0; i < dot; i++) {
+            char c = jws.charAt(i);
+            if (!isBase64Url(c)) {
+                return null;
+            }
+            token[i] = (byte) c;
+        }
+        byte[] json = decoded.get();
+        int n = FastHs256.decode(token, 0, dot, json, 0);
+        return n < 0 ? null : stringValue(json, 0, n, ALG);
+    }
+
+    private static boolean isBase64Url(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_';
+    }
+
+    // Position just after `"name" :` in a JSON object, or -1
+    private static int valueStart(byte[] json, int from, int to, byte[] name) {
+        for (int i = from; i <= to - name.length; i++) {
+            if (json[i] == '"' && Arrays.equals(json, i, i + name.length, name, 0, name.length)) {
+                int j = skipSpace(json, i + name.length, to);
+                if (j < to && json[j] == ':') {
+                    return skipSpace(json, j + 1, to);
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static String stringValue(byte[] json, int from, int to, byte[] name) {
+        int i = valueStart(json, from, to, name);
+        if (i < 0 || i >= to || json[i] != '"') {
+            return null;
+        }
+        int start = ++i;
+        while (i < to && json[i] != '"') {
+            if (json[i] == '\\' || i - start > 16) {
+                return null;
+            }
+            i++;
+        }
+        return i < to ? new String(json, start, i - start, StandardCharsets.ISO_8859_1) : null;
+    }
+
+    // The value of an integer claim, or -1 if absent or not a plain integer
+    private static long longValue(byte[] json, int from, int to, byte[] name) {
+        int i = valueStart(json, from, to, name);
+        if (i < 0) {
+            return -1;
+        }
+        long value = 0;
+        int digits = 0;
+        while (i < to && json[i] >= '0' && json[i] <= '9' && digits < 16) {
+            value = value * 10 + (json[i++] - '0');
+            digits++;
+        }
+        return digits > 0 && digits < 16 ? value : -1;
+    }
+
+    private static int skipSpace(byte[] json, int i, int to) {
+        while (i < to && (json[i] == ' ' || json[i] == '\t' || json[i] == '\n' || json[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+}
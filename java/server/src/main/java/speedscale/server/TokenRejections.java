@@ -0,0 +1,99 @@
+package speedscale.server;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.jsonwebtoken.ExpiredJwtException;
+import io.jsonwebtoken.MalformedJwtException;
+import io.jsonwebtoken.PrematureJwtException;
+import io.jsonwebtoken.UnsupportedJwtException;
+import io.jsonwebtoken.security.SignatureException;
+
+// Counts rejected bearer tokens by reason and logs a sample of them. A
+// flood of bad tokens costs a counter increment each, plus at most one
+// log line per reason per interval.
+@Component
+public class TokenRejections {
+
+    static final Logger log = LogManager.getLogger();
+
+    public enum Reason {
+        MISSING,
+        MALFORMED,
+        BAD_ENCODING,
+        UNSUPPORTED_ALGORITHM,
+        EXPIRED,
+        NOT_YET_VALID,
+        BAD_SIGNATURE,
+        REVOKED,
+        INVALID
+    }
+
+    private final long logIntervalMillis;
+    private final Map<Reason, LongAdder> counts = new EnumMap<Reason, LongAdder>(Reason.class);
+    private final Map<Reason, AtomicLong> nextLog = new EnumMap<Reason, AtomicLong>(Reason.class);
+    private final Map<Reason, LongAdder> suppressed = new EnumMap<Reason, LongAdder>(Reason.class);
+
+    public TokenRejections(@Value("${my.tokenRejections.logIntervalMillis:10000}") long logIntervalMillis) {
+        this.logIntervalMillis = logIntervalMillis;
+        for (Reason r : Reason.values()) {
+            counts.put(r, new LongAdder());
+            nextLog.put(r, new AtomicLong());
+            suppressed.put(r, new LongAdder());
+        }
+    }
+
+    public void reject(Reason reason, String detail) {
+        counts.get(reason).increment();
+
+        long now = System.currentTimeMillis();
+        AtomicLong next = nextLog.get(reason);
+        long due = next.get();
+        if (now < due || !next.compareAndSet(due, now + logIntervalMillis)) {
+            suppressed.get(reason).increment();
+            return;
+        }
+        long skipped = suppressed.get(reason).sumThenReset();
+        log.warn("Rejected token ({}): {}{}", reason, detail,
+            skipped > 0 ? " [" + skipped + " similar suppressed]" : "");
+    }
+
+    public void reject(Exception e) {
+        reject(reasonFor(e), e.getMessage());
+    }
+
+    public Map<String, Long> stats() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (Reason r : Reason.values()) {
+            m.put(r.name().toLowerCase(), counts.get(r).sum());
+        }
+        return m;
+    }
+
+    static Reason reasonFor(Exception e) {
+        if (e instanceof ExpiredJwtException) {
+            return Reason.EXPIRED;
+        }
+        if (e instanceof PrematureJwtException) {
+            return Reason.NOT_YET_VALID;
+        }
+        if (e instanceof SignatureException) {
+            return Reason.BAD_SIGNATURE;
+        }
+        if (e instanceof MalformedJwtException || e instanceof IllegalArgumentException) {
+            return Reason.MALFORMED;
+        }
+        if (e instanceof UnsupportedJwtException) {
+            return Reason.UNSUPPORTED_ALGORITHM;
+        }
+        return Reason.INVALID;
+    }
+}
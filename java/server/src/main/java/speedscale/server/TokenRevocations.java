@@ -0,0 +1,153 @@
+package speedscale.server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import jakarta.annotation.PostConstruct;
+
+// Token IDs (jti) revoked before their exp. Every request asks, so the
+// common answer, not revoked, comes from a Bloom filter in a few hash
+// probes; only Bloom hits look at the exact set. Revocations are appended
+// to my.revocation.file and replayed on startup. The filter is rebuilt at
+// twice the size once it holds more than it was sized for, and every
+// my.revocation.pruneIntervalMillis without the entries that have expired.
+@Component
+public class TokenRevocations {
+
+    static final Logger log = LogManager.getLogger();
+
+    private static final double FALSE_POSITIVE_RATE = 0.001;
+
+    private final String file;
+    private final int expectedEntries;
+
+    // jti to the epoch millis after which the token is dead anyway
+    private final ConcurrentHashMap<String, Long> revoked = new ConcurrentHashMap<String, Long>();
+    private volatile BloomFilter bloom;
+    // Entries the current filter was sized for, guarded by this
+    private int capacity;
+
+    private final LongAdder bloomHits = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    public TokenRevocations(
+            @Value("${my.revocation.file:}") String file,
+            @Value("${my.revocation.expectedEntries:100000}") int expectedEntries) {
+        this.file = file;
+        this.expectedEntries = expectedEntries;
+        this.capacity = expectedEntries;
+        this.bloom = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+    }
+
+    @PostConstruct
+    void load() throws IOException {
+        if (file.isEmpty() || !Files.exists(Path.of(file))) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (String line : Files.readAllLines(Path.of(file), StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                long expiresAt = Long.parseLong(parts[1]);
+                if (expiresAt > now) {
+                    revoked.put(parts[0], expiresAt);
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Skipping bad revocation entry: " + line);
+            }
+        }
+        rebuild();
+        log.info("Loaded " + revoked.size() + " revoked tokens from " + file);
+    }
+
+    public boolean isRevoked(String id) {
+        if (id == null || !bloom.mightContain(id)) {
+            return false;
+        }
+        bloomHits.increment();
+        if (revoked.containsKey(id)) {
+            return true;
+        }
+        falsePositives.increment();
+        return false;
+    }
+
+    // expiresAt is when the token would expire on its own, the entry is
+    // dropped after that
+    public synchronized void revoke(String id, long expiresAt) throws IOException {
+        if (revoked.putIfAbsent(id, expiresAt) != null) {
+            return;
+        }
+        if (revoked.size() > capacity) {
+            // Past its sizing the filter stops filtering, drop what has
+            // expired and start a bigger one, which rewrites the file too
+            revoked.values().removeIf(exp -> exp <= System.currentTimeMillis());
+            rebuild();
+            return;
+        }
+        bloom.put(id);
+        if (!file.isEmpty()) {
+            Files.writeString(Path.of(file), id + " " + expiresAt + "\n", StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    // A Bloom filter cannot forget, so the expired entries only leave it
+    // with a rebuild
+    @Scheduled(initialDelayString = "${my.revocation.pruneIntervalMillis:3600000}",
+            fixedDelayString = "${my.revocation.pruneIntervalMillis:3600000}")
+    public synchronized void prune() throws IOException {
+        long now = System.currentTimeMillis();
+        if (revoked.values().removeIf(exp -> exp <= now)) {
+            rebuild();
+        }
+    }
+
+    public Map<String, Long> stats() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        m.put("revoked", (long) revoked.size());
+        m.put("bloom_bits", bloom.bitCount());
+        m.put("bloom_hits", bloomHits.sum());
+        m.put("false_positives", falsePositives.sum());
+        return m;
+    }
+
+    // New filter with room for as many again as is revoked now, and the
+    // file rewritten without the expired entries
+    private synchronized void rebuild() throws IOException {
+        capacity = Math.max(expectedEntries, revoked.size() * 2);
+        BloomFilter next = new BloomFilter(capacity, FALSE_POSITIVE_RATE);
+        List<String> lines = new ArrayList<String>(revoked.size());
+        for (Map.Entry<String, Long> e : revoked.entrySet()) {
+            next.put(e.getKey());
+            lines.add(e.getKey() + " " + e.getValue());
+        }
+        bloom = next;
+
+        if (!file.isEmpty()) {
+            Path path = Path.of(file);
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            Files.write(tmp, lines, StandardCharsets.UTF_8);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
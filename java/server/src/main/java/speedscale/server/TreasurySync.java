@@ -0,0 +1,148 @@
+package speedscale.server;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import speedscale.lib.InterestRateColumns;
+import speedscale.lib.InterestRateIndex;
+import speedscale.lib.InterestRateReducer;
+import speedscale.lib.Treasury;
+import speedscale.model.InterestRateStats;
+import speedscale.model.TreasuryResponse;
+
+// Local copy of the last my.treasurySync.historyYears years of
+// avg_interest_rates records, this one included. Each sync asks only
+// for records on or after the latest record_date already held, page by
+// page, so a sync costs the new month's records rather than every year.
+// The last date is fetched again because the Treasury can publish more
+// lines for it later, so everything from that date on is replaced by what
+// the sync returned. Records are held as InterestRateColumns; requests are
+// answered from this year's aggregates and the range index built from them
+// by the last successful sync.
+@Component
+public class TreasurySync {
+
+    static final Logger log = LogManager.getLogger();
+
+    private final int pageSize;
+    private final int historyYears;
+
+    // Only the sync thread touches it
+    private InterestRateColumns columns;
+
+    private volatile InterestRateStats current;
+    private volatile InterestRateIndex index;
+    private volatile long lastSynced;
+
+    private final LongAdder syncs = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder pages = new LongAdder();
+    private final LongAdder fetched = new LongAdder();
+
+    public TreasurySync(
+            @Value("${my.treasurySync.pageSize:1000}") int pageSize,
+            @Value("${my.treasurySync.historyYears:10}") int historyYears) {
+        this.pageSize = pageSize;
+        this.historyYears = Math.max(1, historyYears);
+    }
+
+    // Null until the first sync succeeds
+    public InterestRateStats current() {
+        return current;
+    }
+
+    // Null until the first sync succeeds
+    public InterestRateIndex index() {
+        return index;
+    }
+
+    @Scheduled(initialDelay = 0, fixedDelayString = "${my.treasurySync.intervalMillis:3600000}")
+    public synchronized void sync() {
+        LocalDate firstOfYear = LocalDate.now(ZoneOffset.UTC).withDayOfYear(1);
+        LocalDate historyStart = firstOfYear.minusYears(historyYears - 1);
+        InterestRateColumns held = columns;
+        LocalDate since = historyStart;
+        if (held != null && held.size() > 0) {
+            LocalDate lastSeen = LocalDate.ofEpochDay(held.epochDay(held.size() - 1));
+            if (lastSeen.isAfter(historyStart)) {
+                since = lastSeen;
+            }
+        }
+        List<TreasuryResponse.Record> fresh = new ArrayList<TreasuryResponse.Record>();
+        int pageCount = 0;
+        try {
+            int totalPages = 1;
+            for (int number = 1; number <= totalPages; number++) {
+                TreasuryResponse page = Treasury.interestRatesPage(since, number, pageSize);
+                pageCount++;
+                if (page.data != null) {
+                    fresh.addAll(page.data);
+                }
+                if (page.meta != null) {
+                    totalPages = page.meta.total_pages;
+                }
+            }
+        } catch (Exception e) {
+            // Keep answering from the last good sync
+            failures.increment();
+            log.warn("Treasury sync since " + since + " failed: " + e);
+            return;
+        } finally {
+            pages.add(pageCount);
+        }
+
+        // Keep what is held from historyStart, so a new year drops the
+        // oldest one, up to since, then the fresh records in date and line
+        // order. A row published while paging can show up on two pages,
+        // only the last copy of each date and line is kept.
+        InterestRateColumns.Builder b = new InterestRateColumns.Builder();
+        if (held != null) {
+            b.addAll(held, held.lowerBound(historyStart.toEpochDay()), held.lowerBound(since.toEpochDay()));
+        }
+        fresh.sort(Comparator.comparing((TreasuryResponse.Record r) -> r.record_date)
+                .thenComparingInt(r -> r.src_line_nbr));
+        for (int i = 0; i < fresh.size(); i++) {
+            TreasuryResponse.Record r = fresh.get(i);
+            if (i + 1 < fresh.size() && r.record_date.equals(fresh.get(i + 1).record_date)
+                    && r.src_line_nbr == fresh.get(i + 1).src_line_nbr) {
+                continue;
+            }
+            if (!r.record_date.toInstant().atZone(ZoneOffset.UTC).toLocalDate().isBefore(historyStart)) {
+                b.add(r);
+            }
+        }
+        InterestRateColumns synced = b.build();
+        columns = synced;
+        current = InterestRateReducer.reduce(synced, synced.lowerBound(firstOfYear.toEpochDay()));
+        index = new InterestRateIndex(synced);
+        lastSynced = System.currentTimeMillis();
+        syncs.increment();
+        fetched.add(fresh.size());
+        log.info("Synced " + fresh.size() + " Treasury records since " + since + " in " + pageCount
+                + " pages, " + synced.size() + " held");
+    }
+
+    public Map<String, Long> stats() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        InterestRateIndex i = index;
+        m.put("records", i == null ? 0 : (long) i.size());
+        m.put("syncs", syncs.sum());
+        m.put("failures", failures.sum());
+        m.put("pages", pages.sum());
+        m.put("fetched", fetched.sum());
+        m.put("last_synced", lastSynced);
+        return m;
+    }
+}
@@ -0,0 +1,26 @@
+package speedscale.server;
+
+import io.jsonwebtoken.Claims;
+
+// The parts of a verified token that the request filters need
+public final class VerifiedToken {
+
+    public final String subject;
+
+    // Epoch millis, 0 when the token has no exp claim
+    public final long expiresAt;
+
+    // The jti claim, null for tokens issued without one
+    public final String id;
+
+    VerifiedToken(String subject, long expiresAt, String id) {
+        this.subject = subject;
+        this.expiresAt = expiresAt;
+        this.id = id;
+    }
+
+    static VerifiedToken of(Claims claims) {
+        long expiresAt = claims.getExpiration() == null ? 0 : claims.getExpiration().getTime();
+        return new VerifiedToken(claims.getSubject(), expiresAt, claims.getId());
+    }
+}
@@ -0,0 +1,146 @@
+package speedscale.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+// Remembers tokens that already passed signature verification so repeat
+// bearer tokens only cost a SHA-256 and a map lookup. Entries never outlive
+// the token's own exp claim.
+@Component
+public class VerifiedTokenCache {
+
+    private static final ThreadLocal<MessageDigest> sha256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int maxSize;
+    private final long maxTtlMillis;
+
+    private static final class Entry {
+        // Epoch millis, the earlier of the token's exp and the cache TTL
+        final long expiresAt;
+        final VerifiedToken token;
+
+        Entry(long expiresAt, VerifiedToken token) {
+            this.expiresAt = expiresAt;
+            this.token = token;
+        }
+    }
+
+    // Keyed by the digest of the compact JWT
+    private final ConcurrentHashMap<ByteBuffer, Entry> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public VerifiedTokenCache(
+            @Value("${my.tokenCache.maxSize:10000}") int maxSize,
+            @Value("${my.tokenCache.maxTtlMillis:300000}") long maxTtlMillis) {
+        this.maxSize = maxSize;
+        this.maxTtlMillis = maxTtlMillis;
+    }
+
+    // The token as it was verified, or null if it has to be verified again
+    public VerifiedToken get(String token) {
+        if (maxSize <= 0) {
+            return null;
+        }
+        ByteBuffer key = digest(token);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            if (entries.remove(key, entry)) {
+                expirations.increment();
+            }
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.token;
+    }
+
+    public void put(String token, VerifiedToken verified) {
+        if (maxSize <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiresAt = now + maxTtlMillis;
+        if (verified.expiresAt > 0) {
+            expiresAt = Math.min(expiresAt, verified.expiresAt);
+        }
+        if (expiresAt <= now) {
+            return;
+        }
+        if (entries.size() >= maxSize && !makeRoom(now)) {
+            // Another thread is already evicting, skip caching this one
+            return;
+        }
+        entries.put(digest(token), new Entry(expiresAt, verified));
+    }
+
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    public Map<String, Long> stats() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        m.put("size", (long) entries.size());
+        m.put("max_size", (long) maxSize);
+        m.put("hits", hits.sum());
+        m.put("misses", misses.sum());
+        m.put("evictions", evictions.sum());
+        m.put("expirations", expirations.sum());
+        return m;
+    }
+
+    private boolean makeRoom(long now) {
+        if (!evictionLock.tryLock()) {
+            return false;
+        }
+        try {
+            // Drop anything already expired first, then arbitrary entries
+            // until there is room again
+            Iterator<Map.Entry<ByteBuffer, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().expiresAt <= now) {
+                    it.remove();
+                    expirations.increment();
+                }
+            }
+            it = entries.entrySet().iterator();
+            while (entries.size() >= maxSize && it.hasNext()) {
+                it.next();
+                it.remove();
+                evictions.increment();
+            }
+            return true;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static ByteBuffer digest(String token) {
+        return ByteBuffer.wrap(sha256.get().digest(token.getBytes(StandardCharsets.UTF_8)));
+    }
+}